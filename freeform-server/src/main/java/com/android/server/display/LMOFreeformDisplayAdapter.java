@@ -2,19 +2,29 @@ package com.android.server.display;
 
 import static com.android.server.display.DisplayDeviceInfo.FLAG_TRUSTED;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Rect;
+import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.util.ArrayMap;
+import android.util.DisplayMetrics;
 import android.util.Slog;
 import android.view.Display;
 import android.view.DisplayShape;
 import android.view.Surface;
 import android.view.SurfaceControl;
 
+import com.android.server.LocalServices;
+
 import java.io.PrintWriter;
+import java.util.ArrayList;
 
 import com.libremobileos.freeform.ILMOFreeformDisplayCallback;
 
@@ -22,11 +32,27 @@ public class LMOFreeformDisplayAdapter extends DisplayAdapter {
     private static final String TAG = "LMOFreeform/LMOFreeformDisplayAdapter";
     // Unique id prefix for freeform displays.
     public static final String UNIQUE_ID_PREFIX = "lmo-freeform:";
+    // How often to look for the logical display if it was not mapped on the first attempt.
+    private static final long DISPLAY_ADD_RETRY_INTERVAL_MS = 16;
+    // Give up on a freeform display that still has no logical display after this long.
+    private static final long DISPLAY_ADD_TIMEOUT_MS = 3000;
+    // Number of idle freeform displays kept ready for the next launch, 0 disables the pool.
+    private static final String PROP_DISPLAY_POOL_SIZE = "persist.sys.lmofreeform.display_pool_size";
+    private static final int DEFAULT_DISPLAY_POOL_SIZE = 1;
+    // Refill the pool a bit after a claim so it does not compete with the launch itself.
+    private static final long DISPLAY_POOL_REFILL_DELAY_MS = 1000;
 
     private final ArrayMap<IBinder, FreeformDisplayDevice> mFreeformDisplayDevices =
             new ArrayMap<>();
     private final ArrayMap<FreeformDisplayDevice, ILMOFreeformDisplayCallback> lmoFreeformDisplayCallbackArrayMap =
             new ArrayMap<>();
+    // Surface-less displays that are already mapped to a logical display, see claimLocked().
+    private final ArrayList<FreeformDisplayDevice> mIdleFreeformDisplayDevices = new ArrayList<>();
+    private int mIdleDisplayCount;
+    // Parameters of the last freeform request, the pool is only filled once these are known.
+    private FreeformFlags mPoolFlags;
+    private float mPoolRefreshRate;
+    private long mPoolPresentationDeadlineNanos;
 
     private final Handler mHandler;
     private final Handler mUiHandler;
@@ -49,11 +75,36 @@ public class LMOFreeformDisplayAdapter extends DisplayAdapter {
     @Override
     public void dumpLocked(PrintWriter pw) {
         super.dumpLocked(pw);
+        pw.println("mIdleFreeformDisplayDevices: " + mIdleFreeformDisplayDevices.size()
+                + "/" + getDisplayPoolSize() + " flags=" + mPoolFlags);
     }
 
     @Override
     public void registerLocked() {
         super.registerLocked();
+        // lets the freeform server reach the adapter for calls DisplayManagerInternal does not carry
+        LocalServices.addService(LMOFreeformDisplayAdapter.class, this);
+        getContext().registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                    mHandler.post(() -> trimDisplayPool());
+                }
+            }
+
+            @Override
+            public void onLowMemory() {
+                mHandler.post(() -> trimDisplayPool());
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        });
+    }
+
+    private static int getDisplayPoolSize() {
+        return SystemProperties.getInt(PROP_DISPLAY_POOL_SIZE, DEFAULT_DISPLAY_POOL_SIZE);
     }
 
     /**
@@ -66,30 +117,159 @@ public class LMOFreeformDisplayAdapter extends DisplayAdapter {
         synchronized (getSyncRoot()) {
             IBinder appToken = callback.asBinder();
             FreeformFlags flags = new FreeformFlags(secure, ownContentOnly, shouldShowSystemDecorations);
-            IBinder displayToken = DisplayControl.createDisplay(UNIQUE_ID_PREFIX + name, flags.mSecure, refreshRate);
-            FreeformDisplayDevice device = new FreeformDisplayDevice(displayToken, UNIQUE_ID_PREFIX + name, width, height, densityDpi,
-                    refreshRate, presentationDeadlineNanos,
-                    flags, surface, new Callback(callback, mHandler), callback.asBinder());
+            FreeformDisplayDevice device = claimIdleDeviceLocked(flags, refreshRate);
+            if (device != null) {
+                device.claimLocked(UNIQUE_ID_PREFIX + name, width, height, densityDpi,
+                        presentationDeadlineNanos, surface, new Callback(callback, mHandler), appToken);
+                Slog.i(TAG, "claimed idle freeform display " + device.getUniqueId() + " for " + name);
+            } else {
+                IBinder displayToken = DisplayControl.createDisplay(UNIQUE_ID_PREFIX + name, flags.mSecure, refreshRate);
+                device = new FreeformDisplayDevice(displayToken, UNIQUE_ID_PREFIX + name, width, height, densityDpi,
+                        refreshRate, presentationDeadlineNanos,
+                        flags, surface, new Callback(callback, mHandler), callback.asBinder());
+                sendDisplayDeviceEventLocked(device, DISPLAY_DEVICE_EVENT_ADDED);
+            }
+            mPoolFlags = flags;
+            mPoolRefreshRate = refreshRate;
+            mPoolPresentationDeadlineNanos = presentationDeadlineNanos;
+            mHandler.removeCallbacks(mRefillDisplayPoolRunnable);
+            mHandler.postDelayed(mRefillDisplayPoolRunnable, DISPLAY_POOL_REFILL_DELAY_MS);
 
-            sendDisplayDeviceEventLocked(device, DISPLAY_DEVICE_EVENT_ADDED);
             mFreeformDisplayDevices.put(appToken, device);
             lmoFreeformDisplayCallbackArrayMap.put(device, callback);
 
-            mHandler.postDelayed(() -> {
-                LogicalDisplay display = mLogicalDisplayMapper.getDisplayLocked(device);
-                Slog.i(TAG, "findLogicalDisplayForDevice " + display);
-                try {
-                    callback.onDisplayAdd(display.getDisplayIdLocked());
-                } catch (Exception ignored) {
-
-                }
-            }, 500);
-
             try {
                 appToken.linkToDeath(device, 0);
             } catch (RemoteException ex) {
                 mFreeformDisplayDevices.remove(appToken);
+                lmoFreeformDisplayCallbackArrayMap.remove(device);
+                device.destroyLocked(false);
+                sendDisplayDeviceEventLocked(device, DISPLAY_DEVICE_EVENT_REMOVED);
+                return;
+            }
+
+            // The ADDED event is handled on mHandler, so by the time this runs the
+            // LogicalDisplayMapper has normally created the logical display already.
+            mHandler.post(new DisplayAddNotifier(device, callback));
+        }
+    }
+
+    private FreeformDisplayDevice claimIdleDeviceLocked(FreeformFlags flags, float refreshRate) {
+        if (mIdleFreeformDisplayDevices.isEmpty()
+                || !flags.equals(mPoolFlags) || refreshRate != mPoolRefreshRate) {
+            return null;
+        }
+        return mIdleFreeformDisplayDevices.remove(mIdleFreeformDisplayDevices.size() - 1);
+    }
+
+    private final Runnable mRefillDisplayPoolRunnable = this::refillDisplayPool;
+
+    /**
+     * Create idle freeform displays until the configured pool size is reached.
+     * Idle displays have no surface and a placeholder size until they are claimed.
+     * The SurfaceFlinger displays are created outside the SyncRoot, only the devices are
+     * registered under it.
+     */
+    private void refillDisplayPool() {
+        final FreeformFlags flags;
+        final float refreshRate;
+        final long presentationDeadlineNanos;
+        final int missing;
+        synchronized (getSyncRoot()) {
+            if (mPoolFlags == null) return;
+            flags = mPoolFlags;
+            refreshRate = mPoolRefreshRate;
+            presentationDeadlineNanos = mPoolPresentationDeadlineNanos;
+            missing = getDisplayPoolSize() - mIdleFreeformDisplayDevices.size();
+        }
+        for (int i = 0; i < missing; i++) {
+            final String uniqueId;
+            synchronized (getSyncRoot()) {
+                uniqueId = UNIQUE_ID_PREFIX + "idle-" + mIdleDisplayCount++;
+            }
+            IBinder displayToken = DisplayControl.createDisplay(uniqueId, flags.mSecure, refreshRate);
+            synchronized (getSyncRoot()) {
+                // a launch with other parameters came in meanwhile, or the pool is full again
+                if (flags.equals(mPoolFlags) && refreshRate == mPoolRefreshRate
+                        && mIdleFreeformDisplayDevices.size() < getDisplayPoolSize()) {
+                    FreeformDisplayDevice device = new FreeformDisplayDevice(displayToken, uniqueId,
+                            1, 1, DisplayMetrics.DENSITY_DEFAULT,
+                            refreshRate, presentationDeadlineNanos,
+                            flags, null, null, new Binder());
+                    sendDisplayDeviceEventLocked(device, DISPLAY_DEVICE_EVENT_ADDED);
+                    mIdleFreeformDisplayDevices.add(device);
+                    Slog.i(TAG, "added idle freeform display " + uniqueId);
+                    continue;
+                }
+            }
+            DisplayControl.destroyDisplay(displayToken);
+            return;
+        }
+    }
+
+    /**
+     * Drop all idle freeform displays, they are recreated after the next launch.
+     */
+    private void trimDisplayPool() {
+        synchronized (getSyncRoot()) {
+            mHandler.removeCallbacks(mRefillDisplayPoolRunnable);
+            for (FreeformDisplayDevice device : mIdleFreeformDisplayDevices) {
                 device.destroyLocked(false);
+                sendDisplayDeviceEventLocked(device, DISPLAY_DEVICE_EVENT_REMOVED);
+            }
+            if (!mIdleFreeformDisplayDevices.isEmpty()) {
+                Slog.i(TAG, "trimmed " + mIdleFreeformDisplayDevices.size() + " idle freeform displays");
+            }
+            mIdleFreeformDisplayDevices.clear();
+        }
+    }
+
+    /**
+     * Delivers the logical display id of a new freeform display as soon as it has been mapped,
+     * retrying on the display handler until {@link #DISPLAY_ADD_TIMEOUT_MS} has elapsed.
+     */
+    private final class DisplayAddNotifier implements Runnable {
+        private final FreeformDisplayDevice mDevice;
+        private final ILMOFreeformDisplayCallback mCallback;
+        private final long mStartTime = SystemClock.uptimeMillis();
+
+        DisplayAddNotifier(FreeformDisplayDevice device, ILMOFreeformDisplayCallback callback) {
+            mDevice = device;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            final int displayId;
+            final long latency = SystemClock.uptimeMillis() - mStartTime;
+            synchronized (getSyncRoot()) {
+                if (mFreeformDisplayDevices.get(mDevice.mAppToken) != mDevice) {
+                    // Released before the logical display showed up.
+                    return;
+                }
+                LogicalDisplay display = mLogicalDisplayMapper.getDisplayLocked(mDevice);
+                if (display == null) {
+                    if (latency < DISPLAY_ADD_TIMEOUT_MS) {
+                        mHandler.postDelayed(this, DISPLAY_ADD_RETRY_INTERVAL_MS);
+                        return;
+                    }
+                    Slog.w(TAG, "no logical display for " + mDevice.mName + " after " + latency + "ms");
+                    releaseFreeform(mDevice.mAppToken);
+                    displayId = Display.INVALID_DISPLAY;
+                } else {
+                    displayId = display.getDisplayIdLocked();
+                    mDevice.mDisplayAddLatencyMs = latency;
+                    Slog.i(TAG, "findLogicalDisplayForDevice " + display + " in " + latency + "ms");
+                }
+            }
+            try {
+                if (displayId == Display.INVALID_DISPLAY) {
+                    mCallback.onDisplayAddFailed();
+                } else {
+                    mCallback.onDisplayAdd(displayId);
+                }
+            } catch (RemoteException e) {
+                Slog.w(TAG, "Failed to notify listener of freeform display add." + e);
             }
         }
     }
@@ -119,6 +299,47 @@ public class LMOFreeformDisplayAdapter extends DisplayAdapter {
         }
     }
 
+    /**
+     * Detach the surface of a freeform display while its window cannot be seen, so nothing is
+     * composited into it, and attach it again when it becomes visible.
+     */
+    public void setFreeformPaused(IBinder appToken, boolean paused) {
+        synchronized (getSyncRoot()) {
+            FreeformDisplayDevice device = mFreeformDisplayDevices.get(appToken);
+            if (device != null) {
+                device.setPausedLocked(paused);
+            }
+        }
+    }
+
+    /**
+     * Replace the surface of a freeform display, e.g. after the window that shows it was
+     * detached and attached again. A null surface stops rendering until a new one is set.
+     * Surfaces stay owned by the freeform window, SurfaceView fills the same object again
+     * when it creates a new surface, so the adapter never releases them.
+     */
+    public void setFreeformSurface(IBinder appToken, Surface surface) {
+        synchronized (getSyncRoot()) {
+            FreeformDisplayDevice device = mFreeformDisplayDevices.get(appToken);
+            if (device != null) {
+                device.replaceSurfaceLocked(surface);
+            }
+        }
+    }
+
+    /**
+     * Render a freeform display into a buffer scaled by bufferScale (at most 1).
+     * The logical size and density stay the same, so apps are not reconfigured.
+     */
+    public void setFreeformBufferScale(IBinder appToken, float bufferScale) {
+        synchronized (getSyncRoot()) {
+            FreeformDisplayDevice device = mFreeformDisplayDevices.get(appToken);
+            if (device != null) {
+                device.setBufferScaleLocked(bufferScale);
+            }
+        }
+    }
+
     public Handler getUiHandler() {
         return mUiHandler;
     }
@@ -133,22 +354,32 @@ public class LMOFreeformDisplayAdapter extends DisplayAdapter {
     public class FreeformDisplayDevice extends DisplayDevice implements IBinder.DeathRecipient {
         private static final int PENDING_SURFACE_CHANGE = 0x01;
         private static final int PENDING_RESIZE = 0x02;
+        private static final int PENDING_BUFFER_SCALE = 0x04;
 
         private String mName;
         private final float mRefreshRate;
-        private final long mDisplayPresentationDeadlineNanos;
+        private long mDisplayPresentationDeadlineNanos;
         private final FreeformFlags mFlags;
         private int mWidth;
         private int mHeight;
         private int mDensityDpi;
+        // The only mode, at the rate SurfaceFlinger composes the display at. Its id is kept
+        // across resizes.
         protected Display.Mode mMode;
         protected Surface mSurface;
         protected DisplayDeviceInfo mInfo;
 
-        protected final Callback mCallback;
-        protected final IBinder mAppToken;
+        protected Callback mCallback;
+        protected IBinder mAppToken;
 
         private int mPendingChanges;
+        private boolean mPaused;
+        // Fraction of the display size the buffer is rendered at, see setBufferScaleLocked().
+        private float mBufferScale = 1.0f;
+        private final Rect mLayerStackRect = new Rect();
+        private final Rect mBufferRect = new Rect();
+        // Time from device creation until its logical display id was delivered, -1 if not yet.
+        private long mDisplayAddLatencyMs = -1;
 
         FreeformDisplayDevice(IBinder displayToken, String uniqueId,
                               int width, int height, int density,
@@ -172,25 +403,98 @@ public class LMOFreeformDisplayAdapter extends DisplayAdapter {
             mPendingChanges |= PENDING_SURFACE_CHANGE;
         }
 
+        /**
+         * Hand an idle display over to a freeform window: attach its surface and apply
+         * the requested size in the next traversal. Everything that belongs to one launch
+         * starts over, as for a newly created display.
+         */
+        void claimLocked(String name, int width, int height, int densityDpi,
+                         long presentationDeadlineNanos, Surface surface,
+                         Callback callback, IBinder appToken) {
+            mName = name;
+            mWidth = width;
+            mHeight = height;
+            mDensityDpi = densityDpi;
+            mMode = resizeMode(width, height);
+            mDisplayPresentationDeadlineNanos = presentationDeadlineNanos;
+            mSurface = surface;
+            mCallback = callback;
+            mAppToken = appToken;
+            mPaused = false;
+            mDisplayAddLatencyMs = -1;
+            if (mBufferScale != 1.0f) {
+                mBufferScale = 1.0f;
+                mPendingChanges |= PENDING_BUFFER_SCALE;
+            }
+            mInfo = null;
+            mPendingChanges |= PENDING_SURFACE_CHANGE | PENDING_RESIZE;
+            sendDisplayDeviceEventLocked(this, DISPLAY_DEVICE_EVENT_CHANGED);
+            sendTraversalRequestLocked();
+        }
+
+        /**
+         * Latest size wins: while a change is still pending, only the target values are updated
+         * and the info is rebuilt and applied once by the already requested event and traversal.
+         */
         public void resizeLocked(int width, int height, int densityDpi) {
-            if (mWidth != width || mHeight != height || mDensityDpi != densityDpi) {
+            if (mWidth == width && mHeight == height && mDensityDpi == densityDpi) {
+                return;
+            }
+            mWidth = width;
+            mHeight = height;
+            mDensityDpi = densityDpi;
+            if (mInfo != null) {
+                // A null info means a CHANGED event that has not been handled yet.
+                mInfo = null;
                 sendDisplayDeviceEventLocked(this, DISPLAY_DEVICE_EVENT_CHANGED);
+            }
+            if ((mPendingChanges & PENDING_RESIZE) == 0) {
+                mPendingChanges |= PENDING_RESIZE;
                 sendTraversalRequestLocked();
-                mWidth = width;
-                mHeight = height;
-                mMode = createMode(width, height, mRefreshRate);
-                mDensityDpi = densityDpi;
-                mInfo = null;
             }
         }
 
-        public void destroyLocked(boolean binderAlive) {
-            if (mSurface != null) {
-                mSurface.release();
-                mSurface = null;
+        private Display.Mode resizeMode(int width, int height) {
+            return new Display.Mode(mMode.getModeId(), width, height, mRefreshRate);
+        }
+
+        void replaceSurfaceLocked(Surface surface) {
+            if (mSurface == surface) {
+                return;
+            }
+            mSurface = surface;
+            mPendingChanges |= PENDING_SURFACE_CHANGE;
+            sendTraversalRequestLocked();
+        }
+
+        void setBufferScaleLocked(float bufferScale) {
+            bufferScale = Math.max(0.0f, Math.min(1.0f, bufferScale));
+            if (mBufferScale == bufferScale) {
+                return;
+            }
+            mBufferScale = bufferScale;
+            mPendingChanges |= PENDING_BUFFER_SCALE;
+            sendTraversalRequestLocked();
+        }
+
+        void setPausedLocked(boolean paused) {
+            if (mPaused == paused) {
+                return;
             }
+            mPaused = paused;
+            mPendingChanges |= PENDING_SURFACE_CHANGE;
+            sendTraversalRequestLocked();
+            if (paused) {
+                mCallback.dispatchDisplayPaused();
+            } else {
+                mCallback.dispatchDisplayResumed();
+            }
+        }
+
+        public void destroyLocked(boolean binderAlive) {
+            mSurface = null;
             DisplayControl.destroyDisplay(getDisplayTokenLocked());
-            if (binderAlive) {
+            if (binderAlive && mCallback != null) {
                 mCallback.dispatchDisplayStopped();
             }
         }
@@ -202,15 +506,34 @@ public class LMOFreeformDisplayAdapter extends DisplayAdapter {
 
         @Override
         public void performTraversalLocked(SurfaceControl.Transaction t) {
-            if ((mPendingChanges & PENDING_RESIZE) != 0) {
-                t.setDisplaySize(getDisplayTokenLocked(), mWidth, mHeight);
+            final boolean scaled = mBufferScale < 1.0f;
+            if (scaled || (mPendingChanges & (PENDING_RESIZE | PENDING_BUFFER_SCALE)) != 0) {
+                final int bufferWidth = Math.max(1, Math.round(mWidth * mBufferScale));
+                final int bufferHeight = Math.max(1, Math.round(mHeight * mBufferScale));
+                t.setDisplaySize(getDisplayTokenLocked(), bufferWidth, bufferHeight);
+                if (scaled || (mPendingChanges & PENDING_BUFFER_SCALE) != 0) {
+                    // LogicalDisplay projects onto the whole display size and only sends its
+                    // projection when it changes, so the scaled one is applied on every traversal.
+                    mLayerStackRect.set(0, 0, mWidth, mHeight);
+                    mBufferRect.set(0, 0, bufferWidth, bufferHeight);
+                    t.setDisplayProjection(getDisplayTokenLocked(), Surface.ROTATION_0,
+                            mLayerStackRect, mBufferRect);
+                }
             }
             if ((mPendingChanges & PENDING_SURFACE_CHANGE) != 0) {
-                setSurfaceLocked(t, mSurface);
+                setSurfaceLocked(t, mPaused ? null : mSurface);
             }
             mPendingChanges = 0;
         }
 
+        @Override
+        public void dumpLocked(PrintWriter pw) {
+            super.dumpLocked(pw);
+            pw.println("mDisplayAddLatencyMs=" + mDisplayAddLatencyMs);
+            pw.println("mPaused=" + mPaused + " mBufferScale=" + mBufferScale);
+            pw.println("mMode=" + mMode);
+        }
+
         @Override
         public void binderDied() {
             synchronized (getSyncRoot()) {
@@ -225,8 +548,13 @@ public class LMOFreeformDisplayAdapter extends DisplayAdapter {
         @Override
         public DisplayDeviceInfo getDisplayDeviceInfoLocked() {
             if (mInfo == null) {
+                if (mMode.getPhysicalWidth() != mWidth || mMode.getPhysicalHeight() != mHeight) {
+                    mMode = resizeMode(mWidth, mHeight);
+                }
                 mInfo = new DisplayDeviceInfo();
                 mInfo.name = mName;
+                // A claimed idle display keeps its id, the id of a DisplayDevice is final and
+                // DisplayManager and WindowManager have to agree on it. mName tells the launch.
                 mInfo.uniqueId = getUniqueId();
                 mInfo.width = mMode.getPhysicalWidth();
                 mInfo.height = mMode.getPhysicalHeight();
@@ -237,7 +565,7 @@ public class LMOFreeformDisplayAdapter extends DisplayAdapter {
                 mInfo.xDpi = mDensityDpi;
                 mInfo.yDpi = mDensityDpi;
                 mInfo.presentationDeadlineNanos = mDisplayPresentationDeadlineNanos +
-                        1000000000L / (int) mRefreshRate;   // display's deadline + 1 frame
+                        1000000000L / (int) mMode.getRefreshRate();   // display's deadline + 1 frame
                 //mInfo.flags = DisplayDeviceInfo.FLAG_PRESENTATION;
                 if (mFlags.mSecure) {
                     mInfo.flags |= DisplayDeviceInfo.FLAG_SECURE;
@@ -275,6 +603,20 @@ public class LMOFreeformDisplayAdapter extends DisplayAdapter {
             mShouldShowSystemDecorations = shouldShowSystemDecorations;
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FreeformFlags)) return false;
+            FreeformFlags other = (FreeformFlags) o;
+            return mSecure == other.mSecure
+                    && mOwnContentOnly == other.mOwnContentOnly
+                    && mShouldShowSystemDecorations == other.mShouldShowSystemDecorations;
+        }
+
+        @Override
+        public int hashCode() {
+            return (mSecure ? 1 : 0) | (mOwnContentOnly ? 2 : 0) | (mShouldShowSystemDecorations ? 4 : 0);
+        }
+
         @Override
         public String toString() {
             return new StringBuilder("{")
@@ -0,0 +1,52 @@
+package com.android.server.wm;
+
+import android.content.Context;
+import android.os.IBinder;
+import android.os.ServiceManager;
+import android.util.Slog;
+
+/**
+ * Restacks freeform overlays in place. Overlays of one type are stacked in the order they were
+ * added, this moves the token of an existing window above its siblings of the same layer so it
+ * does not have to be removed and added again.
+ */
+public final class LMOFreeformWindowStacker {
+    private static final String TAG = "LMOFreeform/LMOFreeformWindowStacker";
+
+    private LMOFreeformWindowStacker() {
+    }
+
+    /**
+     * @param client the window token of a view attached by this process, see View#getWindowToken()
+     * @return false if the window is not known to WindowManagerService
+     */
+    public static boolean moveWindowToTop(IBinder client) {
+        final WindowManagerService wms =
+                (WindowManagerService) ServiceManager.getService(Context.WINDOW_SERVICE);
+        synchronized (wms.mGlobalLock) {
+            final WindowState win = wms.mWindowMap.get(client);
+            if (win == null) return false;
+            final WindowToken token = win.mToken;
+            final WindowContainer parent = token.getParent();
+            final DisplayContent displayContent = win.getDisplayContent();
+            if (parent == null || displayContent == null) return false;
+            // the tokens are sorted by layer, stay below the tokens of higher layers
+            final int layer = token.getWindowLayerFromType();
+            int position = parent.mChildren.indexOf(token);
+            for (int i = parent.mChildren.size() - 1; i > position; i--) {
+                final WindowToken sibling = ((WindowContainer) parent.mChildren.get(i)).asWindowToken();
+                if (sibling != null && sibling.getWindowLayerFromType() <= layer) {
+                    position = i;
+                    break;
+                }
+            }
+            if (parent.mChildren.get(position) == token) return true;
+            Slog.d(TAG, "moveWindowToTop " + win + " position=" + position);
+            parent.positionChildAt(position, token, false /* includingParents */);
+            displayContent.assignWindowLayers(true /* setLayoutNeeded */);
+            displayContent.getInputMonitor().updateInputWindowsLw(true /* force */);
+            wms.mWindowPlacerLocked.requestTraversal();
+            return true;
+        }
+    }
+}
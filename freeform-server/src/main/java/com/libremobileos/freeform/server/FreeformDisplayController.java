@@ -0,0 +1,174 @@
+package com.libremobileos.freeform.server;
+
+import static com.libremobileos.freeform.server.Debug.dlog;
+
+import android.hardware.display.DisplayManagerInternal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.view.Surface;
+
+import com.android.server.LocalServices;
+import com.android.server.display.LMOFreeformDisplayAdapter;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.libremobileos.freeform.ILMOFreeformDisplayCallback;
+
+/**
+ * Runs the DisplayManager freeform calls (create, resize, release) on a dedicated thread.
+ * Each of them takes the DisplayManagerService SyncRoot, so they must not run on the
+ * handler that draws the freeform windows.
+ *
+ * Commands run in submission order, so the commands of one window never overtake each other.
+ * Resizes of a window that are still queued are coalesced, the latest size wins.
+ * Completion callbacks are posted back to the handler passed to the constructor.
+ */
+public class FreeformDisplayController {
+    private static final String TAG = "LMOFreeform/FreeformDisplayController";
+
+    private final DisplayManagerInternal displayManager;
+    private final Handler callbackHandler;
+    private final Handler handler;
+
+    private final ArrayMap<IBinder, PendingResize> pendingResizes = new ArrayMap<>();
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    // stats, guarded by this
+    private int maxQueueDepth = 0;
+    private long commandCount = 0;
+    private long totalQueueWaitMs = 0;
+    private long maxQueueWaitMs = 0;
+    private long totalCallMs = 0;
+    private long maxCallMs = 0;
+
+    public FreeformDisplayController(DisplayManagerInternal displayManager, Handler callbackHandler) {
+        this.displayManager = displayManager;
+        this.callbackHandler = callbackHandler;
+        HandlerThread thread = new HandlerThread("LMOFreeformControl", Process.THREAD_PRIORITY_FOREGROUND);
+        thread.start();
+        this.handler = new Handler(thread.getLooper());
+    }
+
+    public void createFreeform(String name, ILMOFreeformDisplayCallback callback,
+                               int width, int height, int densityDpi, boolean secure,
+                               boolean ownContentOnly, boolean shouldShowSystemDecorations, Surface surface,
+                               float refreshRate, long presentationDeadlineNanos) {
+        enqueue("create", () -> displayManager.createFreeformLocked(name, callback,
+                width, height, densityDpi, secure,
+                ownContentOnly, shouldShowSystemDecorations, surface,
+                refreshRate, presentationDeadlineNanos), null);
+    }
+
+    /**
+     * @param onResized run on the callback handler once the display has been resized, may be null
+     */
+    public void resizeFreeform(IBinder appToken, int width, int height, int densityDpi, Runnable onResized) {
+        synchronized (pendingResizes) {
+            PendingResize pending = pendingResizes.get(appToken);
+            if (pending != null) {
+                pending.set(width, height, densityDpi, onResized);
+                return;
+            }
+            pending = new PendingResize();
+            pending.set(width, height, densityDpi, onResized);
+            pendingResizes.put(appToken, pending);
+        }
+        enqueue("resize", () -> {
+            final PendingResize pending;
+            synchronized (pendingResizes) {
+                pending = pendingResizes.remove(appToken);
+            }
+            displayManager.resizeFreeform(appToken, pending.width, pending.height, pending.densityDpi);
+            if (pending.onResized != null) callbackHandler.post(pending.onResized);
+        }, null);
+    }
+
+    public void releaseFreeform(IBinder appToken, Runnable onReleased) {
+        enqueue("release", () -> displayManager.releaseFreeform(appToken), onReleased);
+    }
+
+    public void setFreeformPaused(IBinder appToken, boolean paused) {
+        enqueueAdapter(paused ? "pause" : "resume", adapter -> adapter.setFreeformPaused(appToken, paused));
+    }
+
+    public void setFreeformSurface(IBinder appToken, Surface surface) {
+        enqueueAdapter("surface", adapter -> adapter.setFreeformSurface(appToken, surface));
+    }
+
+    /**
+     * @param onDone run on the callback handler once the display uses the new buffer scale
+     */
+    public void setFreeformBufferScale(IBinder appToken, float bufferScale, Runnable onDone) {
+        enqueueAdapter("bufferScale", adapter -> adapter.setFreeformBufferScale(appToken, bufferScale), onDone);
+    }
+
+    /**
+     * For calls DisplayManagerInternal does not carry, the adapter publishes itself in LocalServices.
+     */
+    private void enqueueAdapter(String name, Consumer<LMOFreeformDisplayAdapter> command) {
+        enqueueAdapter(name, command, null);
+    }
+
+    private void enqueueAdapter(String name, Consumer<LMOFreeformDisplayAdapter> command, Runnable onDone) {
+        enqueue(name, () -> {
+            LMOFreeformDisplayAdapter adapter = LocalServices.getService(LMOFreeformDisplayAdapter.class);
+            if (adapter != null) command.accept(adapter);
+        }, onDone);
+    }
+
+    private void enqueue(String name, Runnable command, Runnable onDone) {
+        final long enqueueTime = SystemClock.uptimeMillis();
+        final int depth = queueDepth.incrementAndGet();
+        synchronized (this) {
+            maxQueueDepth = Math.max(maxQueueDepth, depth);
+        }
+        handler.post(() -> {
+            queueDepth.decrementAndGet();
+            final long startTime = SystemClock.uptimeMillis();
+            command.run();
+            final long endTime = SystemClock.uptimeMillis();
+            record(startTime - enqueueTime, endTime - startTime);
+            dlog(TAG, name + " waited " + (startTime - enqueueTime) + "ms, took " + (endTime - startTime) + "ms");
+            if (onDone != null) callbackHandler.post(onDone);
+        });
+    }
+
+    private synchronized void record(long queueWaitMs, long callMs) {
+        commandCount++;
+        totalQueueWaitMs += queueWaitMs;
+        maxQueueWaitMs = Math.max(maxQueueWaitMs, queueWaitMs);
+        totalCallMs += callMs;
+        maxCallMs = Math.max(maxCallMs, callMs);
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("FreeformDisplayController:");
+        pw.println("  queueDepth=" + queueDepth.get() + " maxQueueDepth=" + maxQueueDepth);
+        pw.println("  commands=" + commandCount);
+        if (commandCount > 0) {
+            pw.println("  queueWait avg=" + (totalQueueWaitMs / commandCount) + "ms max=" + maxQueueWaitMs + "ms");
+            // the calls are dominated by waiting for the DisplayManagerService SyncRoot
+            pw.println("  call (incl. SyncRoot wait) avg=" + (totalCallMs / commandCount) + "ms max=" + maxCallMs + "ms");
+        }
+    }
+
+    private static final class PendingResize {
+        int width;
+        int height;
+        int densityDpi;
+        Runnable onResized;
+
+        void set(int width, int height, int densityDpi, Runnable onResized) {
+            this.width = width;
+            this.height = height;
+            this.densityDpi = densityDpi;
+            this.onResized = onResized;
+        }
+    }
+}
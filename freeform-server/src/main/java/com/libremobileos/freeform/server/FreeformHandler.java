@@ -0,0 +1,90 @@
+package com.libremobileos.freeform.server;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Slog;
+
+import java.io.PrintWriter;
+
+/**
+ * The handler all freeform UI runs on, called "system handler" in the comments of the ui package.
+ *
+ * Threading contract:
+ * - Freeform windows, their views, animators, Choreographer callbacks and the ui package singletons
+ *   (FreeformWindowManager, FreeformVisibilityTracker, FreeformRotationWatcher, ...) are only
+ *   touched on this thread. Binder callbacks post to it.
+ * - Nothing on this thread waits for the DisplayManagerService SyncRoot, display calls go through
+ *   FreeformDisplayController. Input is injected by FreeformInputForwarder.
+ *
+ * The thread runs at display priority and is owned by the freeform subsystem, so it neither
+ * waits behind nor delays the loopers of system_server. Every message is timed: how long it
+ * waited past its due time and how long it ran. Slow ones are kept for dumpsys.
+ */
+public class FreeformHandler extends Handler {
+    private static final String TAG = "LMOFreeform/FreeformHandler";
+
+    // a message that waits or runs longer than this costs the freeform windows a frame
+    private static final long SLOW_MESSAGE_MS = 16;
+    private static final int MAX_SLOW_MESSAGES = 32;
+
+    // stats, guarded by this
+    private long messageCount = 0;
+    private long totalQueueWaitMs = 0;
+    private long maxQueueWaitMs = 0;
+    private long totalRunMs = 0;
+    private long maxRunMs = 0;
+    private long slowMessageCount = 0;
+    private final String[] slowMessages = new String[MAX_SLOW_MESSAGES];
+
+    public static FreeformHandler create() {
+        HandlerThread thread = new HandlerThread("LMOFreeformUI", Process.THREAD_PRIORITY_DISPLAY);
+        thread.start();
+        return new FreeformHandler(thread);
+    }
+
+    private FreeformHandler(HandlerThread thread) {
+        super(thread.getLooper());
+    }
+
+    @Override
+    public void dispatchMessage(Message msg) {
+        final long startTime = SystemClock.uptimeMillis();
+        // when is the enqueue time for posts and the due time for delayed posts
+        final long queueWaitMs = Math.max(0, startTime - msg.getWhen());
+        final Runnable callback = msg.getCallback();
+        final int what = msg.what;
+        super.dispatchMessage(msg);
+        final long runMs = SystemClock.uptimeMillis() - startTime;
+        record(queueWaitMs, runMs, callback, what);
+    }
+
+    private synchronized void record(long queueWaitMs, long runMs, Runnable callback, int what) {
+        messageCount++;
+        totalQueueWaitMs += queueWaitMs;
+        maxQueueWaitMs = Math.max(maxQueueWaitMs, queueWaitMs);
+        totalRunMs += runMs;
+        maxRunMs = Math.max(maxRunMs, runMs);
+        if (queueWaitMs < SLOW_MESSAGE_MS && runMs < SLOW_MESSAGE_MS) return;
+        final String name = callback != null ? callback.getClass().getName() : "what=" + what;
+        final String entry = name + " waited " + queueWaitMs + "ms, ran " + runMs + "ms";
+        slowMessages[(int) (slowMessageCount % MAX_SLOW_MESSAGES)] = entry;
+        slowMessageCount++;
+        if (runMs >= SLOW_MESSAGE_MS) Slog.w(TAG, "slow message: " + entry);
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("FreeformHandler:");
+        pw.println("  messages=" + messageCount + " slow=" + slowMessageCount);
+        if (messageCount > 0) {
+            pw.println("  queueWait avg=" + (totalQueueWaitMs / messageCount) + "ms max=" + maxQueueWaitMs + "ms");
+            pw.println("  run avg=" + (totalRunMs / messageCount) + "ms max=" + maxRunMs + "ms");
+        }
+        final int count = (int) Math.min(slowMessageCount, MAX_SLOW_MESSAGES);
+        for (int i = count; i > 0; i--) {
+            pw.println("    " + slowMessages[(int) ((slowMessageCount - i) % MAX_SLOW_MESSAGES)]);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.libremobileos.freeform.server;
+
+import android.os.Handler;
+import android.os.Process;
+import android.util.Slog;
+import android.view.MotionEvent;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Injects forwarded touch events on a display priority thread, so a slow injection does not
+ * hold up the freeform windows and a busy UI looper does not hold up the apps.
+ *
+ * Events are handed over through a bounded single-producer/single-consumer ring. The producer
+ * is the UI handler thread, all freeform views live on it. While the consumer is behind, MOVE
+ * events are merged into one pending MOVE with all their samples, DOWN, UP and CANCEL are
+ * always queued in order. Only if the ring is full an event is dropped.
+ */
+public class FreeformInputForwarder {
+    private static final String TAG = "LMOFreeform/FreeformInputForwarder";
+
+    // must be a power of two
+    private static final int CAPACITY = 64;
+    // merge MOVE events once this many events are waiting
+    private static final int COALESCE_DEPTH = 2;
+
+    private final LMOFreeformService lmoFreeformService;
+    private final Handler producerHandler;
+    private final Thread thread;
+
+    private final MotionEvent[] events = new MotionEvent[CAPACITY];
+    private final int[] displayIds = new int[CAPACITY];
+    // next slot to consume, only written by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // next slot to fill, only written by the producer
+    private final AtomicLong tail = new AtomicLong();
+    private volatile boolean consumerParked = false;
+    // set while the producer holds a merged MOVE that is not queued yet
+    private final AtomicBoolean moveCoalesced = new AtomicBoolean();
+    private final Runnable flushCoalescedMoveRunnable = this::flushCoalescedMove;
+
+    // producer state
+    private MotionEvent coalescedMove = null;
+    private int coalescedMoveDisplayId;
+    private MotionEvent.PointerCoords[] mergeCoords = new MotionEvent.PointerCoords[0];
+
+    // stats
+    private volatile long maxDepth = 0;
+    private final AtomicLong forwardedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    public FreeformInputForwarder(LMOFreeformService lmoFreeformService, Handler producerHandler) {
+        this.lmoFreeformService = lmoFreeformService;
+        this.producerHandler = producerHandler;
+        this.thread = new Thread(this::consumeLoop, "LMOFreeformInput");
+        this.thread.start();
+    }
+
+    /**
+     * Takes ownership of the event, it is recycled once injected.
+     * Called in system handler
+     */
+    public void forward(MotionEvent event, int displayId) {
+        if (event.getActionMasked() == MotionEvent.ACTION_MOVE) {
+            if (coalescedMove != null) {
+                if (coalescedMoveDisplayId == displayId && canMerge(coalescedMove, event)) {
+                    merge(coalescedMove, event);
+                    event.recycle();
+                    coalescedCount.incrementAndGet();
+                } else {
+                    flushCoalescedMove();
+                    publish(event, displayId);
+                }
+                if (depth() < COALESCE_DEPTH) flushCoalescedMove();
+                return;
+            }
+            if (depth() >= COALESCE_DEPTH) {
+                coalescedMove = event;
+                coalescedMoveDisplayId = displayId;
+                moveCoalesced.set(true);
+                return;
+            }
+        } else {
+            flushCoalescedMove();
+        }
+        publish(event, displayId);
+    }
+
+    private void flushCoalescedMove() {
+        if (coalescedMove == null) return;
+        moveCoalesced.set(false);
+        MotionEvent event = coalescedMove;
+        coalescedMove = null;
+        publish(event, coalescedMoveDisplayId);
+    }
+
+    private void publish(MotionEvent event, int displayId) {
+        final long t = tail.get();
+        final long depth = t - head.get();
+        if (depth >= CAPACITY) {
+            droppedCount.incrementAndGet();
+            Slog.w(TAG, "queue full, dropping " + MotionEvent.actionToString(event.getAction()));
+            event.recycle();
+            return;
+        }
+        final int i = (int) (t & (CAPACITY - 1));
+        events[i] = event;
+        displayIds[i] = displayId;
+        tail.set(t + 1);
+        if (depth + 1 > maxDepth) maxDepth = depth + 1;
+        if (consumerParked) LockSupport.unpark(thread);
+    }
+
+    private long depth() {
+        return tail.get() - head.get();
+    }
+
+    private static boolean canMerge(MotionEvent target, MotionEvent event) {
+        final int pointerCount = event.getPointerCount();
+        if (target.getPointerCount() != pointerCount || target.getSource() != event.getSource()) {
+            return false;
+        }
+        for (int i = 0; i < pointerCount; i++) {
+            if (target.getPointerId(i) != event.getPointerId(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Append every sample of event, historical ones included, to target
+     */
+    private void merge(MotionEvent target, MotionEvent event) {
+        final int pointerCount = event.getPointerCount();
+        if (mergeCoords.length < pointerCount) {
+            MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[pointerCount];
+            for (int i = 0; i < pointerCount; i++) {
+                coords[i] = i < mergeCoords.length ? mergeCoords[i] : new MotionEvent.PointerCoords();
+            }
+            mergeCoords = coords;
+        }
+        final int historySize = event.getHistorySize();
+        for (int h = 0; h < historySize; h++) {
+            for (int i = 0; i < pointerCount; i++) {
+                event.getHistoricalPointerCoords(i, h, mergeCoords[i]);
+            }
+            target.addBatch(event.getHistoricalEventTime(h), mergeCoords, event.getMetaState());
+        }
+        for (int i = 0; i < pointerCount; i++) {
+            event.getPointerCoords(i, mergeCoords[i]);
+        }
+        target.addBatch(event.getEventTime(), mergeCoords, event.getMetaState());
+    }
+
+    private void consumeLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+        while (true) {
+            final long h = head.get();
+            if (h == tail.get()) {
+                // the producer only queues its merged MOVE on its next event, ask for it now
+                if (moveCoalesced.compareAndSet(true, false)) {
+                    producerHandler.post(flushCoalescedMoveRunnable);
+                }
+                consumerParked = true;
+                if (h == tail.get()) LockSupport.park(this);
+                consumerParked = false;
+                continue;
+            }
+            final int i = (int) (h & (CAPACITY - 1));
+            final MotionEvent event = events[i];
+            final int displayId = displayIds[i];
+            events[i] = null;
+            head.set(h + 1);
+            try {
+                lmoFreeformService.injectInputEvent(event, displayId);
+                forwardedCount.incrementAndGet();
+            } catch (Exception e) {
+                Slog.w(TAG, "injectInputEvent failed", e);
+            } finally {
+                event.recycle();
+            }
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("FreeformInputForwarder:");
+        pw.println("  depth=" + depth() + " maxDepth=" + maxDepth + " capacity=" + CAPACITY);
+        pw.println("  forwarded=" + forwardedCount.get() + " coalesced=" + coalescedCount.get()
+                + " dropped=" + droppedCount.get());
+    }
+}
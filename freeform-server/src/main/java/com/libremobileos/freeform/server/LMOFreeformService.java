@@ -1,38 +1,33 @@
 package com.libremobileos.freeform.server;
 
-import static com.libremobileos.freeform.server.Debug.dlog;
-
 import android.hardware.display.DisplayManagerInternal;
-import android.util.Slog;
+import android.hardware.input.InputManager;
+import android.os.SystemClock;
 import android.view.InputEvent;
-import android.view.Surface;
 
-import com.libremobileos.freeform.ILMOFreeformDisplayCallback;
+import java.io.PrintWriter;
 
 public class LMOFreeformService {
     private static final String TAG = "LMOFreeform/LMOFreeformService";
 
     private DisplayManagerInternal displayManager = null;
 
+    private final InjectionStats injectionStats = new InjectionStats();
+
     public LMOFreeformService(DisplayManagerInternal displayManager) {
         this.displayManager = displayManager;
     }
 
-    public void createFreeform(String name, ILMOFreeformDisplayCallback callback,
-                               int width, int height, int densityDpi, boolean secure,
-                               boolean ownContentOnly, boolean shouldShowSystemDecorations, Surface surface,
-                               float refreshRate, long presentationDeadlineNanos) {
-        displayManager.createFreeformLocked(name, callback,
-                width, height, densityDpi, secure,
-                ownContentOnly, shouldShowSystemDecorations, surface,
-                refreshRate, presentationDeadlineNanos);
-        dlog(TAG, "createFreeform");
-    }
-
+    /**
+     * SystemServiceHolder.inputManagerService resolves to the InputManagerService object of
+     * this process, so injection is already an in-process call without a binder transaction.
+     */
     public void injectInputEvent(InputEvent event, int displayId) {
+        event.setDisplayId(displayId);
+        final long start = SystemClock.elapsedRealtimeNanos();
         try {
-            event.setDisplayId(displayId);
-            SystemServiceHolder.inputManagerService.injectInputEvent(event, 0);
+            SystemServiceHolder.inputManagerService.injectInputEvent(event, InputManager.INJECT_INPUT_EVENT_MODE_ASYNC);
+            injectionStats.record(SystemClock.elapsedRealtimeNanos() - start);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -41,4 +36,29 @@ public class LMOFreeformService {
     public boolean isRunning() {
         return null != SystemServiceHolder.inputManagerService;
     }
+
+    public void dump(PrintWriter pw) {
+        pw.println("LMOFreeformService:");
+        injectionStats.dump(pw);
+    }
+
+    private static final class InjectionStats {
+        private long count = 0;
+        private long totalNanos = 0;
+        private long maxNanos = 0;
+
+        synchronized void record(long nanos) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        synchronized void dump(PrintWriter pw) {
+            pw.print("  inject: count=" + count);
+            if (count > 0) {
+                pw.print(" avg=" + (totalNanos / count / 1000) + "us max=" + (maxNanos / 1000) + "us");
+            }
+            pw.println();
+        }
+    }
 }
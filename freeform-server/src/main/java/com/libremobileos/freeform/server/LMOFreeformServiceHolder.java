@@ -5,11 +5,14 @@ import static com.libremobileos.freeform.server.Debug.dlog;
 import android.app.ActivityThread;
 import android.app.IApplicationThread;
 import android.annotation.SuppressLint;
+import android.app.ActivityManagerInternal;
 import android.app.ActivityOptions;
 import android.app.PendingIntent;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ResolveInfo;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
@@ -22,6 +25,10 @@ import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.Surface;
 
+import com.android.internal.os.BackgroundThread;
+import com.android.server.LocalServices;
+import com.android.server.am.HostingRecord;
+
 import com.libremobileos.freeform.ILMOFreeformDisplayCallback;
 import com.libremobileos.freeform.server.ui.AppConfig;
 import com.libremobileos.freeform.server.ui.FreeformConfig;
@@ -38,6 +45,13 @@ public class LMOFreeformServiceHolder {
         lmoFreeformService = freeformService;
     }
 
+    /**
+     * Null if LMOFreeformUIService was created without its system services.
+     */
+    private static FreeformDisplayController getDisplayController() {
+        return lmoFreeformUIService != null ? lmoFreeformUIService.getDisplayController() : null;
+    }
+
     public static boolean ping() {
         try {
             return lmoFreeformUIService.ping();
@@ -50,12 +64,20 @@ public class LMOFreeformServiceHolder {
     public static void createDisplay(FreeformConfig freeformConfig, AppConfig appConfig, Surface surface, ILMOFreeformDisplayCallback callback) {
         String displayName;
         displayName = appConfig.getPackageName() + "," + appConfig.getActivityName() + "," + appConfig.getUserId();
-        lmoFreeformService.createFreeform(
+        FreeformDisplayController controller = getDisplayController();
+        if (controller == null) {
+            try {
+                callback.onDisplayAddFailed();
+            } catch (RemoteException ignored) {
+            }
+            return;
+        }
+        controller.createFreeform(
                 displayName,
                 callback,
                 freeformConfig.getFreeformWidth(),
                 freeformConfig.getFreeformHeight(),
-                freeformConfig.getDensityDpi(),
+                freeformConfig.getFreeformDensityDpi(),
                 freeformConfig.getSecure(),
                 freeformConfig.getOwnContentOnly(),
                 freeformConfig.getShouldShowSystemDecorations(),
@@ -65,14 +87,47 @@ public class LMOFreeformServiceHolder {
                 );
     }
 
+    private static Intent createLaunchIntent(AppConfig appConfig) {
+        Intent intent = new Intent();
+        intent.setComponent(new ComponentName(appConfig.getPackageName(), appConfig.getActivityName()));
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        intent.setAction(Intent.ACTION_MAIN);
+        intent.addCategory(Intent.CATEGORY_LAUNCHER);
+        return intent;
+    }
+
+    /**
+     * Resolve the launch activity and start its process on the background thread, while the
+     * window is still inflated and its display created. startApp() then only starts the activity.
+     */
+    public static void prepareApp(Context context, AppConfig appConfig) {
+        BackgroundThread.getHandler().post(() -> {
+            final long startTime = SystemClock.uptimeMillis();
+            try {
+                ResolveInfo resolveInfo = context.getPackageManager().resolveActivityAsUser(
+                        createLaunchIntent(appConfig), 0, appConfig.getUserId());
+                if (resolveInfo == null || resolveInfo.activityInfo == null) {
+                    Slog.w(TAG, "prepareApp: cannot resolve " + appConfig);
+                    return;
+                }
+                ActivityInfo activityInfo = resolveInfo.activityInfo;
+                LocalServices.getService(ActivityManagerInternal.class).startProcess(
+                        activityInfo.processName, activityInfo.applicationInfo,
+                        false /* knownToBeDead */, true /* isTop */,
+                        HostingRecord.HOSTING_TYPE_ACTIVITY,
+                        new ComponentName(activityInfo.packageName, activityInfo.name));
+                dlog(TAG, "prepareApp " + activityInfo.processName + " took "
+                        + (SystemClock.uptimeMillis() - startTime) + "ms");
+            } catch (Exception e) {
+                Slog.w(TAG, "prepareApp failed", e);
+            }
+        });
+    }
+
     public static boolean startApp(Context context, AppConfig appConfig, int displayId) {
         dlog(TAG, "startApp $appConfig displayId=$displayId");
         try {
-            Intent intent = new Intent();
-            intent.setComponent(new ComponentName(appConfig.getPackageName(), appConfig.getActivityName()));
-            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            intent.setAction(Intent.ACTION_MAIN);
-            intent.addCategory(Intent.CATEGORY_LAUNCHER);
+            Intent intent = createLaunchIntent(appConfig);
             ActivityOptions activityOptions = ActivityOptions.makeBasic();
             activityOptions.setLaunchDisplayId(displayId);
             activityOptions.setCallerDisplayId(displayId);
@@ -108,8 +163,17 @@ public class LMOFreeformServiceHolder {
         }
     }
 
+    /**
+     * Hands the event to the input forwarding thread, which recycles it once injected.
+     */
     public static void touch(MotionEvent event, int displayId) {
-        lmoFreeformService.injectInputEvent(event, displayId);
+        FreeformInputForwarder inputForwarder = lmoFreeformUIService != null
+                ? lmoFreeformUIService.getInputForwarder() : null;
+        if (inputForwarder == null) {
+            event.recycle();
+            return;
+        }
+        inputForwarder.forward(event, displayId);
     }
 
     public static void back(int displayId) {
@@ -137,11 +201,36 @@ public class LMOFreeformServiceHolder {
         }
     }
 
-    public static void resizeFreeform(IBinder token, int width, int height, int density) {
-        lmoFreeformUIService.resizeFreeform(token, width, height, density);
+    /**
+     * Resize runs on the freeform control thread, onResized is posted back to the UI handler.
+     */
+    public static void resizeFreeform(IBinder token, int width, int height, int density, Runnable onResized) {
+        FreeformDisplayController controller = getDisplayController();
+        if (controller == null) return;
+        controller.resizeFreeform(token, width, height, density, onResized);
+    }
+
+    public static void setFreeformPaused(IBinder token, boolean paused) {
+        FreeformDisplayController controller = getDisplayController();
+        if (controller == null) return;
+        controller.setFreeformPaused(token, paused);
+    }
+
+    public static void setFreeformSurface(IBinder token, Surface surface) {
+        FreeformDisplayController controller = getDisplayController();
+        if (controller == null) return;
+        controller.setFreeformSurface(token, surface);
+    }
+
+    public static void setFreeformBufferScale(IBinder token, float bufferScale, Runnable onDone) {
+        FreeformDisplayController controller = getDisplayController();
+        if (controller == null) return;
+        controller.setFreeformBufferScale(token, bufferScale, onDone);
     }
 
     public static void releaseFreeform(IBinder token) {
-        lmoFreeformUIService.releaseFreeform(token);
+        FreeformDisplayController controller = getDisplayController();
+        if (controller == null) return;
+        controller.releaseFreeform(token, null);
     }
 }
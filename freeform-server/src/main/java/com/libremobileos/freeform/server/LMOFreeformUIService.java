@@ -8,7 +8,6 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.hardware.display.DisplayManagerInternal;
 import android.os.Binder;
-import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
@@ -16,10 +15,17 @@ import android.util.ArrayMap;
 import android.util.Slog;
 import android.view.Surface;
 
+import com.android.internal.util.DumpUtils;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.Map;
 
 import com.libremobileos.freeform.ILMOFreeformDisplayCallback;
 import com.libremobileos.freeform.ILMOFreeformUIService;
+import com.libremobileos.freeform.server.ui.AppInfoCache;
+import com.libremobileos.freeform.server.ui.DragPredictor;
+import com.libremobileos.freeform.server.ui.FreeformWindow;
 import com.libremobileos.freeform.server.ui.FreeformWindowManager;
 
 public class LMOFreeformUIService extends ILMOFreeformUIService.Stub {
@@ -31,7 +37,9 @@ public class LMOFreeformUIService extends ILMOFreeformUIService.Stub {
     private DisplayManagerInternal displayManager = null;
     private LMOFreeformService lmoFreeformService = null;
     // private Handler uiHandler = null;
-    private Handler handler = new Handler();
+    private final FreeformHandler handler = FreeformHandler.create();
+    private FreeformDisplayController displayController = null;
+    private FreeformInputForwarder inputForwarder = null;
 
     public LMOFreeformUIService(Context context, DisplayManagerInternal displayManager, LMOFreeformService lmoFreeformService) {
         if (null == context || null == displayManager || null == lmoFreeformService) return;
@@ -39,6 +47,8 @@ public class LMOFreeformUIService extends ILMOFreeformUIService.Stub {
         this.systemContext = context;
         this.displayManager = displayManager;
         this.lmoFreeformService = lmoFreeformService;
+        this.displayController = new FreeformDisplayController(displayManager, handler);
+        this.inputForwarder = new FreeformInputForwarder(lmoFreeformService, handler);
         // this.uiHandler = displayManager.getUiHandler();
         // this.handler = displayManager.getHandler();
 
@@ -62,10 +72,10 @@ public class LMOFreeformUIService extends ILMOFreeformUIService.Stub {
             throw new SecurityException("Caller must be system");
         }
         Slog.d(TAG, "startAppInLMOFreeform: " + packageName + "/" + activityName + ", taskId=" + taskId);
-        FreeformWindowManager.addWindow(
+        handler.post(() -> FreeformWindowManager.addWindow(
                 handler, systemContext,
                 packageName, activityName, userId, taskId, pendingIntent,
-                width, height, densityDpi);
+                width, height, densityDpi));
     }
 
     @Override
@@ -73,7 +83,7 @@ public class LMOFreeformUIService extends ILMOFreeformUIService.Stub {
         if (Binder.getCallingUid() != SYSTEM_UID) {
             throw new SecurityException("Caller must be system");
         }
-        FreeformWindowManager.removeWindow(freeformId, true /*close*/);
+        handler.post(() -> FreeformWindowManager.removeWindow(freeformId, true /*close*/));
     }
 
     @Override
@@ -86,7 +96,7 @@ public class LMOFreeformUIService extends ILMOFreeformUIService.Stub {
         if (Binder.getCallingUid() != SYSTEM_UID) {
             throw new SecurityException("Caller must be system");
         }
-        displayManager.createFreeformLocked(
+        displayController.createFreeform(
                 name, callback,
                 width, height, densityDpi,
                 secure, ownContentOnly, shouldShowSystemDecorations,
@@ -99,7 +109,7 @@ public class LMOFreeformUIService extends ILMOFreeformUIService.Stub {
         if (Binder.getCallingUid() != SYSTEM_UID) {
             throw new SecurityException("Caller must be system");
         }
-        displayManager.resizeFreeform(appToken, width, height, densityDpi);
+        displayController.resizeFreeform(appToken, width, height, densityDpi, null);
     }
 
     @Override
@@ -107,7 +117,7 @@ public class LMOFreeformUIService extends ILMOFreeformUIService.Stub {
         if (Binder.getCallingUid() != SYSTEM_UID) {
             throw new SecurityException("Caller must be system");
         }
-        displayManager.releaseFreeform(appToken);
+        displayController.releaseFreeform(appToken, null);
     }
 
     @Override
@@ -118,4 +128,34 @@ public class LMOFreeformUIService extends ILMOFreeformUIService.Stub {
         // need inputManager is not null
         return lmoFreeformService.isRunning();
     }
+
+    /**
+     * Null if the service was created without its system services, see the constructor.
+     */
+    FreeformDisplayController getDisplayController() {
+        return displayController;
+    }
+
+    /**
+     * Null if the service was created without its system services, see the constructor.
+     */
+    FreeformInputForwarder getInputForwarder() {
+        return inputForwarder;
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (null == systemContext) {
+            pw.println("LMOFreeformUIService is not initialized");
+            return;
+        }
+        if (!DumpUtils.checkDumpPermission(systemContext, TAG, pw)) return;
+        handler.dump(pw);
+        if (null != displayController) displayController.dump(pw);
+        if (null != inputForwarder) inputForwarder.dump(pw);
+        if (null != lmoFreeformService) lmoFreeformService.dump(pw);
+        DragPredictor.dump(pw);
+        AppInfoCache.dump(pw);
+        FreeformWindow.dump(pw);
+    }
 }
@@ -0,0 +1,135 @@
+package com.libremobileos.freeform.server.ui
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.drawable.AdaptiveIconDrawable
+import android.graphics.drawable.BitmapDrawable
+import android.graphics.drawable.ColorDrawable
+import android.graphics.drawable.Drawable
+import android.os.Handler
+import android.os.UserHandle
+import android.util.LruCache
+import android.util.Slog
+import java.io.PrintWriter
+import kotlin.math.roundToInt
+
+/**
+ * Labels, icons and background colors of the apps shown in freeform windows.
+ * Entries are keyed by package and user and are served as is until a package broadcast drops
+ * them, so a hit does not ask PackageManager for anything. The icons are rendered to bitmaps once,
+ * at the size of the launch placeholder, the cache is bounded by the bytes of those bitmaps.
+ */
+object AppInfoCache {
+    private const val TAG = "LMOFreeform/AppInfoCache"
+    private const val MAX_SIZE_BYTES = 2 * 1024 * 1024
+    // launch placeholder icon, the appIcon view of view_freeform scales it down
+    private const val ICON_SIZE_DP = 48
+    private const val DEFAULT_BACKGROUND_COLOR = Color.WHITE
+
+    private class Entry(val label: String, val icon: Bitmap?, val backgroundColor: Int) {
+        val sizeBytes = (icon?.allocationByteCount ?: 0) + label.length * 2
+    }
+
+    class AppInfo(val label: String, val icon: Drawable?, val backgroundColor: Int)
+
+    private val cache = object : LruCache<String, Entry>(MAX_SIZE_BYTES) {
+        override fun sizeOf(key: String, value: Entry) = value.sizeBytes
+    }
+    private var receiverRegistered = false
+    @Volatile
+    private var hits = 0L
+    @Volatile
+    private var misses = 0L
+
+    private val packageReceiver = object : BroadcastReceiver() {
+        override fun onReceive(context: Context, intent: Intent) {
+            val packageName = intent.data?.schemeSpecificPart ?: return
+            val uid = intent.getIntExtra(Intent.EXTRA_UID, -1)
+            if (uid == -1) {
+                val prefix = "$packageName/"
+                cache.snapshot().keys.filter { it.startsWith(prefix) }.forEach { cache.remove(it) }
+            } else {
+                cache.remove(key(packageName, UserHandle.getUserId(uid)))
+            }
+        }
+    }
+
+    private fun key(packageName: String, userId: Int) = "$packageName/$userId"
+
+    /**
+     * Called in system handler
+     */
+    fun get(context: Context, handler: Handler, packageName: String, userId: Int): AppInfo {
+        registerReceiver(context, handler)
+        val user = if (userId >= 0) userId else UserHandle.USER_SYSTEM
+        return try {
+            val key = key(packageName, user)
+            var entry = cache.get(key)
+            if (entry != null) {
+                hits++
+            } else {
+                misses++
+                val pm = context.packageManager
+                val ai = pm.getApplicationInfoAsUser(packageName, 0, user)
+                val label = pm.getApplicationLabel(ai).toString()
+                val icon = pm.getApplicationIcon(ai)
+                entry = Entry(label, renderIcon(context, icon), backgroundColorOf(icon))
+                cache.put(key, entry)
+            }
+            AppInfo(entry.label, entry.icon?.let { BitmapDrawable(context.resources, it) }, entry.backgroundColor)
+        } catch (e: Exception) {
+            Slog.e(TAG, "Failed to retrieve app info: ${e.message}")
+            AppInfo("", null, DEFAULT_BACKGROUND_COLOR)
+        }
+    }
+
+    /**
+     * Adaptive icons carry the brand color of the app in their background layer
+     */
+    private fun backgroundColorOf(icon: Drawable): Int {
+        val background = (icon as? AdaptiveIconDrawable)?.background ?: return DEFAULT_BACKGROUND_COLOR
+        if (background is ColorDrawable) return background.color
+        val pixel = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888)
+        background.setBounds(0, 0, 1, 1)
+        background.draw(Canvas(pixel))
+        val color = pixel.getPixel(0, 0)
+        pixel.recycle()
+        return color or (0xff shl 24)
+    }
+
+    private fun renderIcon(context: Context, drawable: Drawable): Bitmap? {
+        val size = (ICON_SIZE_DP * context.resources.displayMetrics.density).roundToInt()
+        if (size <= 0) return null
+        val bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888)
+        drawable.setBounds(0, 0, size, size)
+        drawable.draw(Canvas(bitmap))
+        return bitmap
+    }
+
+    private fun registerReceiver(context: Context, handler: Handler) {
+        if (receiverRegistered) return
+        receiverRegistered = true
+        val filter = IntentFilter().apply {
+            addAction(Intent.ACTION_PACKAGE_ADDED)
+            addAction(Intent.ACTION_PACKAGE_CHANGED)
+            addAction(Intent.ACTION_PACKAGE_REPLACED)
+            addAction(Intent.ACTION_PACKAGE_REMOVED)
+            addDataScheme("package")
+        }
+        context.registerReceiverForAllUsers(packageReceiver, filter, null, handler)
+    }
+
+    @JvmStatic
+    fun dump(pw: PrintWriter) {
+        val total = hits + misses
+        pw.println("AppInfoCache:")
+        pw.print("  entries=${cache.snapshot().size} size=${cache.size()}B maxSize=${cache.maxSize()}B hits=$hits misses=$misses")
+        if (total > 0) pw.print(" hitRate=${hits * 100 / total}%")
+        pw.println()
+    }
+}
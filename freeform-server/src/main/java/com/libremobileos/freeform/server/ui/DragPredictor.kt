@@ -0,0 +1,86 @@
+package com.libremobileos.freeform.server.ui
+
+import android.content.Context
+import android.graphics.PointF
+import android.os.SystemProperties
+import android.view.MotionEvent
+import android.view.MotionPredictor
+import android.view.VelocityTracker
+import java.io.PrintWriter
+import kotlin.math.hypot
+import kotlin.math.min
+
+/**
+ * Predicts where the finger of a window drag will be when the next frame is presented, so the
+ * window does not trail behind it.
+ * persist.sys.lmofreeform.drag_prediction selects the predictor:
+ * "platform" (default) uses MotionPredictor and turns prediction off if the device has no model,
+ * "velocity" extrapolates with a VelocityTracker, "off" disables prediction.
+ */
+class DragPredictor(context: Context, private val refreshRate: Float) {
+
+    companion object {
+        private const val PROP_DRAG_PREDICTION = "persist.sys.lmofreeform.drag_prediction"
+        private const val MODE_PLATFORM = "platform"
+        private const val MODE_VELOCITY = "velocity"
+        // never extrapolate further than this
+        private const val MAX_LEAD_MS = 32L
+
+        // distance between the predicted and the real finger position, over all drags
+        private var errorSamples = 0L
+        private var errorSum = 0.0
+        private var errorMax = 0f
+
+        @JvmStatic
+        fun dump(pw: PrintWriter) {
+            pw.println("DragPredictor:")
+            pw.print("  mode=${SystemProperties.get(PROP_DRAG_PREDICTION, MODE_PLATFORM)} samples=$errorSamples")
+            if (errorSamples > 0) pw.print(" errorAvg=${"%.1f".format(errorSum / errorSamples)}px errorMax=${errorMax}px")
+            pw.println()
+        }
+    }
+
+    private val mode = SystemProperties.get(PROP_DRAG_PREDICTION, MODE_PLATFORM)
+    private val motionPredictor = if (mode == MODE_PLATFORM) MotionPredictor(context) else null
+    private val velocityTracker = if (mode == MODE_VELOCITY) VelocityTracker.obtain() else null
+    private val leadMs = min(MAX_LEAD_MS, (1000 / refreshRate).toLong())
+    private var hasPrediction = false
+    private val lastPrediction = PointF()
+
+    /**
+     * Start of a new drag
+     */
+    fun reset() {
+        velocityTracker?.clear()
+        hasPrediction = false
+    }
+
+    /**
+     * Record event and write the predicted raw finger position to out.
+     * Without a prediction out is the current raw position.
+     */
+    fun predict(event: MotionEvent, out: PointF) {
+        if (hasPrediction) recordError(hypot(lastPrediction.x - event.rawX, lastPrediction.y - event.rawY))
+        out.set(event.rawX, event.rawY)
+        hasPrediction = false
+        if (motionPredictor != null && motionPredictor.isPredictionAvailable(event.deviceId, event.source)) {
+            motionPredictor.record(event)
+            val predicted = motionPredictor.predict((event.eventTime + leadMs) * 1_000_000L) ?: return
+            out.set(predicted.rawX, predicted.rawY)
+            predicted.recycle()
+            hasPrediction = true
+        } else if (velocityTracker != null) {
+            velocityTracker.addMovement(event)
+            velocityTracker.computeCurrentVelocity(1)
+            out.offset(velocityTracker.xVelocity * leadMs, velocityTracker.yVelocity * leadMs)
+            hasPrediction = true
+        }
+        lastPrediction.set(out)
+    }
+
+    private fun recordError(error: Float) {
+        errorSamples++
+        errorSum += error
+        if (error > errorMax) errorMax = error
+    }
+}
@@ -1,26 +1,33 @@
 package com.libremobileos.freeform.server.ui
 
 import android.animation.Animator
+import android.animation.AnimatorListenerAdapter
 import android.animation.AnimatorSet
 import android.animation.ValueAnimator
 
 object FreeformAnimation {
+    /**
+     * Moves only reposition the window surface, WindowManager gets the final position at the end
+     */
+    private fun commitPositionOnEnd(window: FreeformWindow) = object : AnimatorListenerAdapter() {
+        override fun onAnimationEnd(animation: Animator) {
+            window.commitWindowPosition()
+        }
+    }
+
     fun moveInScreenAnimator(start: Int, end: Int, dur: Long, moveX: Boolean, window: FreeformWindow) {
         AnimatorSet().apply {
             play(
                 ValueAnimator.ofInt(start, end).apply {
                     addUpdateListener {
-                        window.windowManager.updateViewLayout(
-                            window.freeformLayout,
-                            window.windowParams.apply {
-                                if (moveX) x = it.animatedValue as Int
-                                else y = it.animatedValue as Int
-                            }
-                        )
+                        if (moveX) window.moveWindowTo(it.animatedValue as Int, window.windowParams.y)
+                        else window.moveWindowTo(window.windowParams.x, it.animatedValue as Int)
+                        FreeformVisibilityTracker.requestUpdate(window.handler)
                     }
                 }
             )
             duration = dur
+            addListener(commitPositionOnEnd(window))
             start()
         }
     }
@@ -30,38 +37,31 @@ object FreeformAnimation {
             play(
                 ValueAnimator.ofInt(window.windowParams.x, 0).apply {
                     addUpdateListener {
-                        window.windowManager.updateViewLayout(
-                            window.freeformLayout,
-                            window.windowParams.apply {
-                                x = it.animatedValue as Int
-                            }
-                        )
+                        window.moveWindowTo(it.animatedValue as Int, window.windowParams.y)
                     }
                 }
             )
             duration = dur
+            addListener(commitPositionOnEnd(window))
             start()
         }
         AnimatorSet().apply {
             play(
                 ValueAnimator.ofInt(window.windowParams.y, 0).apply {
                     addUpdateListener {
-                        window.windowManager.updateViewLayout(
-                            window.freeformLayout,
-                            window.windowParams.apply {
-                                y = it.animatedValue as Int
-                            }
-                        )
+                        window.moveWindowTo(window.windowParams.x, it.animatedValue as Int)
                     }
                 }
             )
             duration = dur
+            addListener(commitPositionOnEnd(window))
             start()
         }
         AnimatorSet().apply {
             play(
                 ValueAnimator.ofInt(window.freeformConfig.width, window.defaultDisplayWidth).apply {
                     addUpdateListener {
+                        if (!window.ownsLayout()) return@addUpdateListener
                         window.freeformRootView.layoutParams = window.freeformRootView.layoutParams.apply {
                             width = it.animatedValue as Int
                         }
@@ -75,6 +75,7 @@ object FreeformAnimation {
             play(
                 ValueAnimator.ofInt(window.freeformConfig.height, window.defaultDisplayHeight).apply {
                     addUpdateListener {
+                        if (!window.ownsLayout()) return@addUpdateListener
                         window.freeformRootView.layoutParams = window.freeformRootView.layoutParams.apply {
                             height = it.animatedValue as Int
                         }
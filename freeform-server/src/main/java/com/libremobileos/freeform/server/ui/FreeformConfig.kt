@@ -19,5 +19,15 @@ data class FreeformConfig @JvmOverloads constructor(
     var freeformWidth: Int = 1080,
     var freeformHeight: Int = 1920,
     //小窗屏幕尺寸/小窗界面尺寸
-    var scale: Float = 1.0f
+    var scale: Float = 1.0f,
+    // fraction of the full freeform screen size that is actually rendered, densityDpi follows it
+    var renderScale: Float = 1.0f,
+    // render scale of the display buffer while hung up, the display keeps its size and density
+    var hangUpRenderScale: Float = 0.5f,
+    // densityDpi of the freeform screen, densityDpi * render scale
+    var freeformDensityDpi: Int = densityDpi,
+    // present the freeform screen through a SurfaceView layer instead of a TextureView
+    var useSurfaceView: Boolean = false,
+    // resize the freeform display while dragging the scale handles, not only on release
+    var liveResize: Boolean = true
 )
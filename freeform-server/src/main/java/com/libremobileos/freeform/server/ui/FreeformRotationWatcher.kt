@@ -0,0 +1,84 @@
+package com.libremobileos.freeform.server.ui
+
+import android.content.ComponentCallbacks
+import android.content.Context
+import android.content.res.Configuration
+import android.os.Handler
+import android.view.Display
+import android.view.IRotationWatcher
+import android.view.SurfaceControl
+import com.libremobileos.freeform.server.SystemServiceHolder
+
+/**
+ * Default Display Rotation Listener, shared by all freeform windows.
+ * On rotation or a screen size change the new geometry of every window is computed in one pass,
+ * all surfaces are moved in one transaction and WindowManager gets the new positions afterwards.
+ * Watching while at least one window exists.
+ */
+object FreeformRotationWatcher : IRotationWatcher.Stub(), ComponentCallbacks {
+    @Volatile
+    private var handler: Handler? = null
+    @Volatile
+    private var context: Context? = null
+    // only touched in system handler
+    private var relayoutPosted = false
+    private val transaction = SurfaceControl.Transaction()
+
+    @JvmStatic
+    @Synchronized
+    fun setWatching(handler: Handler, context: Context, watching: Boolean) {
+        if (watching == (this.handler != null)) return
+        if (watching) {
+            this.handler = handler
+            this.context = context
+            SystemServiceHolder.windowManager.watchRotation(this, Display.DEFAULT_DISPLAY)
+            context.registerComponentCallbacks(this)
+        } else {
+            SystemServiceHolder.windowManager.removeRotationWatcher(this)
+            this.context?.unregisterComponentCallbacks(this)
+            this.handler = null
+            this.context = null
+        }
+    }
+
+    override fun onRotationChanged(rotation: Int) {
+        handler?.post { requestRelayout() }
+    }
+
+    override fun onConfigurationChanged(newConfig: Configuration) {
+        handler?.post { requestRelayout() }
+    }
+
+    override fun onLowMemory() {
+
+    }
+
+    /**
+     * Called in system handler
+     */
+    private fun requestRelayout() {
+        val handler = handler ?: return
+        if (relayoutPosted) return
+        relayoutPosted = true
+        handler.post {
+            relayoutPosted = false
+            relayout(handler)
+        }
+    }
+
+    /**
+     * Called in system handler
+     */
+    private fun relayout(handler: Handler) {
+        val metrics = context?.resources?.displayMetrics ?: return
+        val windows = FreeformWindowManager.getWindows()
+        var changed = false
+        for (window in windows) {
+            changed = window.relayoutForScreen(metrics.widthPixels, metrics.heightPixels, transaction) || changed
+        }
+        if (!changed) return
+        transaction.apply()
+        for (window in windows) window.commitWindowPosition()
+        FreeformVisibilityTracker.requestUpdate(handler)
+    }
+}
@@ -0,0 +1,13 @@
+package com.libremobileos.freeform.server.ui
+
+import android.content.Context
+import android.util.AttributeSet
+import android.view.SurfaceView
+
+/**
+ * Presents the freeform display as its own SurfaceControl layer under the freeform window,
+ * so SurfaceFlinger composites the app content directly instead of through a GL texture.
+ */
+class FreeformSurfaceView @JvmOverloads constructor(
+    context: Context, attrs: AttributeSet? = null
+) : SurfaceView(context, attrs)
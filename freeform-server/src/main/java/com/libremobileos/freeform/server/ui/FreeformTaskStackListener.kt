@@ -5,6 +5,7 @@ import android.app.ITaskStackListener
 import android.content.ComponentName
 import android.os.Build
 import android.util.Slog
+import android.util.SparseArray
 import android.view.Display
 import android.view.Surface
 import android.window.TaskSnapshot
@@ -14,21 +15,61 @@ import com.libremobileos.freeform.server.SystemServiceHolder
 import kotlin.math.max
 import kotlin.math.min
 
-class FreeformTaskStackListener(
-    private val displayId: Int,
-    private val window: FreeformWindow
-) : ITaskStackListener.Stub() {
-
-    var taskId = -1
+/**
+ * The one task stack listener of all freeform windows. ActivityTaskManager calls it once per
+ * task event, it looks the concerned window up by displayId or taskId and dispatches to it.
+ * Registered while at least one window is attached.
+ * Events arrive on binder threads, everything that touches a window is posted to its handler.
+ */
+object FreeformTaskStackListener : ITaskStackListener.Stub() {
+    private const val TAG = "LMOFreeform/FreeformTaskStackListener"
+
+    const val PORTRAIT = 1
+    const val LANDSCAPE_1 = 0
+    const val LANDSCAPE_2 = 6
+
+    // guarded by this, events arrive on binder threads
+    private val windowsByDisplay = SparseArray<FreeformWindow>()
+    private val windowsByTask = SparseArray<FreeformWindow>()
+    private var registered = false
+
+    /**
+     * Start dispatching the events of displayId to window
+     */
+    @Synchronized
+    fun attach(window: FreeformWindow, displayId: Int) {
+        windowsByDisplay.put(displayId, window)
+        if (!registered) {
+            SystemServiceHolder.activityTaskManager.registerTaskStackListener(this)
+            registered = true
+        }
+    }
 
-    companion object {
-        private const val TAG = "LMOFreeform/FreeformTaskStackListener"
+    @Synchronized
+    fun detach(window: FreeformWindow) {
+        val displayIndex = windowsByDisplay.indexOfValue(window)
+        if (displayIndex >= 0) windowsByDisplay.removeAt(displayIndex)
+        if (windowsByTask.get(window.taskId) === window) windowsByTask.remove(window.taskId)
+        if (registered && windowsByDisplay.size() == 0) {
+            SystemServiceHolder.activityTaskManager.unregisterTaskStackListener(this)
+            registered = false
+        }
+    }
 
-        const val PORTRAIT = 1
-        const val LANDSCAPE_1 = 0
-        const val LANDSCAPE_2 = 6
+    @Synchronized
+    fun setTaskId(window: FreeformWindow, taskId: Int) {
+        if (window.taskId == taskId) return
+        if (windowsByTask.get(window.taskId) === window) windowsByTask.remove(window.taskId)
+        window.taskId = taskId
+        windowsByTask.put(taskId, window)
     }
 
+    @Synchronized
+    private fun windowOfDisplay(displayId: Int): FreeformWindow? = windowsByDisplay.get(displayId)
+
+    @Synchronized
+    private fun windowOfTask(taskId: Int): FreeformWindow? = if (taskId == -1) null else windowsByTask.get(taskId)
+
     override fun onTaskStackChanged() {
 
     }
@@ -77,30 +118,27 @@ class FreeformTaskStackListener(
     }
 
     override fun onTaskRemoved(taskId: Int) {
-        if (this.taskId == taskId) {
-            dlog(TAG, "onTaskRemoved $taskId")
-            window.destroy("onTaskRemoved")
-        }
+        val window = windowOfTask(taskId) ?: return
+        dlog(TAG, "onTaskRemoved $taskId")
+        window.handler.post { window.destroy("onTaskRemoved") }
     }
 
     override fun onTaskMovedToFront(taskInfo: ActivityManager.RunningTaskInfo?) {
         val displayId = taskInfo?.displayId ?: return
-        if (this.displayId == displayId) {
-            // TODO: move to android.provider.Settings
-            // if (FreeformWindowManager.settings.showImeInFreeform) {
-            //     SystemServiceHolder.windowManager.setDisplayImePolicy(displayId, 0)
-            // }
-            taskId = taskInfo.taskId
-            dlog(TAG, "onTaskMovedToFront $taskId")
-        }
+        val window = windowOfDisplay(displayId) ?: return
+        // TODO: move to android.provider.Settings
+        // if (FreeformWindowManager.settings.showImeInFreeform) {
+        //     SystemServiceHolder.windowManager.setDisplayImePolicy(displayId, 0)
+        // }
+        setTaskId(window, taskInfo.taskId)
+        dlog(TAG, "onTaskMovedToFront ${taskInfo.taskId}")
     }
 
     override fun onTaskDescriptionChanged(taskInfo: ActivityManager.RunningTaskInfo?) {
         val displayId = taskInfo?.displayId ?: return
-        if (this.displayId == displayId) {
-            taskId = taskInfo.taskId
-            dlog(TAG, "onTaskDescriptionChanged $taskInfo")
-        }
+        val window = windowOfDisplay(displayId) ?: return
+        setTaskId(window, taskInfo.taskId)
+        dlog(TAG, "onTaskDescriptionChanged $taskInfo")
     }
 
     override fun onActivityRequestedOrientationChanged(taskId: Int, requestedOrientation: Int) {
@@ -109,11 +147,10 @@ class FreeformTaskStackListener(
 
     override fun onTaskRemovalStarted(taskInfo: ActivityManager.RunningTaskInfo?) {
         val displayId = taskInfo?.displayId ?: return
-        if (this.displayId == displayId) {
-            taskId = taskInfo.taskId
-            dlog(TAG, "onTaskRemovalStarted $taskId")
-            // window.removeView()
-        }
+        val window = windowOfDisplay(displayId) ?: return
+        setTaskId(window, taskInfo.taskId)
+        dlog(TAG, "onTaskRemovalStarted ${taskInfo.taskId}")
+        // window.removeView()
     }
 
     override fun onTaskProfileLocked(taskInfo: ActivityManager.RunningTaskInfo, userId: Int) {
@@ -121,7 +158,8 @@ class FreeformTaskStackListener(
     }
 
     override fun onTaskSnapshotChanged(taskId: Int, snapshot: TaskSnapshot) {
-
+        val window = windowOfTask(taskId) ?: return
+        window.handler.post { window.onTaskSnapshotChanged(snapshot) }
     }
 
     override fun onBackPressedOnTaskRoot(taskInfo: ActivityManager.RunningTaskInfo?) {
@@ -129,12 +167,14 @@ class FreeformTaskStackListener(
     }
 
     override fun onTaskDisplayChanged(taskId: Int, newDisplayId: Int) {
-        if (taskId == this.taskId && newDisplayId == Display.DEFAULT_DISPLAY) {
-            window.destroy("onTaskDisplayChanged")
-        } else if (newDisplayId == displayId) {
-            this.taskId = taskId
-            dlog(TAG, "onTaskDisplayChanged: $taskId to freeform display")
+        val window = windowOfTask(taskId)
+        if (window != null && newDisplayId == Display.DEFAULT_DISPLAY) {
+            window.handler.post { window.destroy("onTaskDisplayChanged") }
+            return
         }
+        val newWindow = windowOfDisplay(newDisplayId) ?: return
+        setTaskId(newWindow, taskId)
+        dlog(TAG, "onTaskDisplayChanged: $taskId to freeform display")
     }
 
     override fun onRecentTaskListUpdated() {
@@ -151,7 +191,8 @@ class FreeformTaskStackListener(
 
     override fun onTaskRequestedOrientationChanged(taskId: Int, requestedOrientation: Int) {
         dlog(TAG, "onTaskRequestedOrientationChanged $taskId $requestedOrientation")
-        if (taskId == this.taskId) {
+        val window = windowOfTask(taskId) ?: return
+        window.handler.post {
             val max = max(window.freeformConfig.width, window.freeformConfig.height)
             val min = min(window.freeformConfig.width, window.freeformConfig.height)
             val maxHangUp = max(window.freeformConfig.hangUpWidth, window.freeformConfig.hangUpHeight)
@@ -172,7 +213,7 @@ class FreeformTaskStackListener(
                     window.freeformConfig.hangUpHeight = minHangUp
                 }
             }
-            window.handler.post { window.changeOrientation() }
+            window.changeOrientation()
         }
     }
 
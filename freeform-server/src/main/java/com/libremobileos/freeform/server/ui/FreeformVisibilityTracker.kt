@@ -0,0 +1,52 @@
+package com.libremobileos.freeform.server.ui
+
+import android.graphics.Rect
+import android.graphics.Region
+import android.os.Handler
+
+/**
+ * Pauses the freeform display of every window that cannot be seen: hidden, completely
+ * off-screen or completely covered by freeform windows above it. Resumes it once any part
+ * of the window is visible again.
+ */
+object FreeformVisibilityTracker {
+    private var updatePosted = false
+    private val screenRect = Rect()
+    private val windowRect = Rect()
+    private val visibleRegion = Region()
+
+    /**
+     * Coalesces all requests until the handler runs the update
+     */
+    @JvmStatic
+    fun requestUpdate(handler: Handler) {
+        if (updatePosted) return
+        updatePosted = true
+        handler.post {
+            updatePosted = false
+            update()
+        }
+    }
+
+    /**
+     * Called in system handler
+     */
+    private fun update() {
+        val windows = FreeformWindowManager.getWindows()
+        for (i in windows.indices) {
+            val window = windows[i]
+            screenRect.set(0, 0, window.defaultDisplayWidth, window.defaultDisplayHeight)
+            if (!window.getWindowFrame(windowRect) || !windowRect.intersect(screenRect)) {
+                window.setDisplayPaused(true)
+                continue
+            }
+            visibleRegion.set(windowRect)
+            for (j in i + 1 until windows.size) {
+                if (windows[j].getWindowFrame(windowRect)) {
+                    visibleRegion.op(windowRect, Region.Op.DIFFERENCE)
+                }
+            }
+            window.setDisplayPaused(visibleRegion.isEmpty)
+        }
+    }
+}
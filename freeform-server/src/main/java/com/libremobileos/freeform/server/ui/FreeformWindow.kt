@@ -2,17 +2,29 @@ package com.libremobileos.freeform.server.ui
 
 import android.annotation.SuppressLint
 import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.Color
 import android.graphics.drawable.Drawable
 import android.graphics.PixelFormat
+import android.graphics.Point
+import android.graphics.Rect
 import android.graphics.SurfaceTexture
+import android.hardware.display.DisplayManager
 import android.os.Build
 import android.os.Handler
+import android.os.SystemClock
+import android.os.SystemProperties
 import android.util.Slog
 import android.view.Display
 import android.view.DisplayInfo
+import android.view.Choreographer
 import android.view.GestureDetector
+import android.view.InputDevice
 import android.view.MotionEvent
 import android.view.Surface
+import android.view.SurfaceControl
+import android.view.SurfaceHolder
+import android.view.SurfaceView
 import android.view.TextureView
 import android.view.View
 import android.view.ViewGroup
@@ -20,12 +32,16 @@ import android.view.WindowManager
 import android.widget.FrameLayout
 import android.widget.ImageView
 import android.widget.TextView
+import android.window.TaskSnapshot
 import com.android.server.LocalServices
+import com.android.server.UiThread
+import com.android.server.wm.LMOFreeformWindowStacker
 import com.android.server.wm.WindowManagerInternal
 import com.libremobileos.freeform.ILMOFreeformDisplayCallback
 import com.libremobileos.freeform.server.Debug.dlog
 import com.libremobileos.freeform.server.LMOFreeformServiceHolder
 import com.libremobileos.freeform.server.SystemServiceHolder
+import java.io.PrintWriter
 import kotlin.math.max
 import kotlin.math.min
 import kotlin.math.roundToInt
@@ -35,42 +51,160 @@ class FreeformWindow(
     val context: Context,
     private val appConfig: AppConfig,
     val freeformConfig: FreeformConfig
-): TextureView.SurfaceTextureListener, ILMOFreeformDisplayCallback.Stub(), View.OnTouchListener,
+): TextureView.SurfaceTextureListener, SurfaceHolder.Callback, ILMOFreeformDisplayCallback.Stub(), View.OnTouchListener,
+    View.OnGenericMotionListener, View.OnHoverListener,
     WindowManagerInternal.DisplaySecureContentListener {
 
-    var freeformTaskStackListener: FreeformTaskStackListener? = null
+    // written by FreeformTaskStackListener
+    @Volatile
+    var taskId = -1
     val windowManager = context.getSystemService(Context.WINDOW_SERVICE) as WindowManager
     val windowManagerInt = LocalServices.getService(WindowManagerInternal::class.java)
     val windowParams = WindowManager.LayoutParams()
-    private val resourceHolder = RemoteResourceHolder(context, FREEFORM_PACKAGE)
+    private val resourceHolder = RemoteResourceHolder.get(context, FREEFORM_PACKAGE)
+    // freeformLayout went back to resourceHolder, it may belong to another window now
+    private var layoutRecycled = false
     lateinit var freeformLayout: ViewGroup
     lateinit var freeformRootView: ViewGroup
-    lateinit var freeformView: TextureView
+    // FreeformTextureView or FreeformSurfaceView, see FreeformConfig.useSurfaceView
+    lateinit var freeformView: View
     private lateinit var topBarView: View
     private lateinit var bottomBarView: View
     private var displayId = Display.INVALID_DISPLAY
     var defaultDisplayWidth = context.resources.displayMetrics.widthPixels
     var defaultDisplayHeight = context.resources.displayMetrics.heightPixels
-    private val rotationWatcher = RotationWatcher(this)
     private val hangUpGestureListener = HangUpGestureListener(this)
     private val defaultDisplayInfo = DisplayInfo()
+    private val displaySize = Point()
+    // see fitInScreen()
+    private val inScreenPosition = Point()
+    // a launch waits for the size of its display, see launchWhenDisplaySized()
+    private var launchPending = false
+    // WindowManager applies display changes in its own listener on the UI thread, a listener
+    // registered there later sees them only after WindowManager did
+    private val displaySizeListener = object : DisplayManager.DisplayListener {
+        override fun onDisplayAdded(displayId: Int) {}
+        override fun onDisplayRemoved(displayId: Int) {}
+        override fun onDisplayChanged(displayId: Int) {
+            handler.post { if (displayId == this@FreeformWindow.displayId) launchIfDisplaySized() }
+        }
+    }
+    private val displaySizeTimeoutRunnable = Runnable {
+        if (!launchPending || closing) return@Runnable
+        Slog.w(TAG, "display $displayId not resized after ${DISPLAY_SIZE_TIMEOUT_MS}ms, launching anyway")
+        stopWaitingForDisplaySize()
+        launchOnDisplay()
+    }
     private val destroyRunnable = Runnable { destroy("destroyRunnable") }
     
+    // pause requested from FreeformVisibilityTracker, isDisplayPaused follows once the display confirms
+    private var displayPauseRequested = false
+    var isDisplayPaused = false
+        private set
+    private var touchPointerCoords = Array(2) { MotionEvent.PointerCoords() }
+    private var touchPointerProperties = Array(2) { MotionEvent.PointerProperties() }
+    // latest HOVER_MOVE or SCROLL waiting for the next frame
+    private var pendingGenericEvent: MotionEvent? = null
+    private var pendingVScroll = 0f
+    private var pendingHScroll = 0f
+    private var genericFramePosted = false
+    private val genericFrameCallback = Choreographer.FrameCallback {
+        genericFramePosted = false
+        flushGenericMotion()
+    }
+    // position last sent to WindowManager, drags and animations only move the surface until committed
+    private var committedX = 0
+    private var committedY = 0
+    private var surfaceMoved = false
+    private var moveFramePosted = false
+    private val moveTransaction = SurfaceControl.Transaction()
+    private val moveFrameCallback = Choreographer.FrameCallback {
+        moveFramePosted = false
+        applySurfacePosition()
+    }
+
+    // size and density this window was opened with, see canReuse()
+    private val requestedWidth = freeformConfig.width
+    private val requestedHeight = freeformConfig.height
+    private val requestedDensityDpi = freeformConfig.densityDpi
+    // set once close() or destroy() started
+    private var closing = false
+    // keep the SurfaceTexture of the freeform display while the overlay is detached
+    private var keepSurfaceTexture = false
+    private var keptSurfaceTexture: SurfaceTexture? = null
+    // the display surface of the TextureView backend, the display adapter does not release it
+    private var textureSurface: Surface? = null
+    // the overlay is removed, the display and the task stay alive, see minimize()
+    var isMinimized = false
+        private set
+
+    // latest snapshot of the task, shown instead of the display while it has no live content.
+    // The TaskSnapshot and its buffer belong to WindowManager, only the bitmap wrapping it is kept
+    private var snapshotBitmap: Bitmap? = null
+    // bitmap snapshotView currently shows
+    private var shownBitmap: Bitmap? = null
+    // snapshotBitmap came from the window this one replaced, its task is gone
+    private var launchSnapshot = false
+    // shows the task snapshot or the launch placeholder
+    private var snapshotView: ImageView? = null
+    private var snapshotShown = false
+    private val launchStartTime = SystemClock.uptimeMillis()
+    // until the first frame of the app, see onSurfaceTextureUpdated()
+    private var launching = false
+    private val hideSnapshotRunnable = Runnable { if (!isDisplayPaused) hideSnapshot() }
+
     private lateinit var appPackageName: String
     private var appIcon: Drawable? = null
+    private var appBackgroundColor = Color.WHITE
 
     companion object {
         private const val TAG = "LMOFreeform/FreeformWindow"
         private const val FREEFORM_PACKAGE = "com.libremobileos.freeform"
         private const val FREEFORM_LAYOUT = "view_freeform"
         private const val WINDOW_DESTROY_WAIT_MS = 10000L
+        // global render scale, overridden per app by PROP_RENDER_SCALE.<packageName>
+        private const val PROP_RENDER_SCALE = "persist.sys.lmofreeform.render_scale"
+        private const val PROP_HANG_UP_RENDER_SCALE = "persist.sys.lmofreeform.hangup_render_scale"
+        private const val MIN_RENDER_SCALE = 0.25f
+        private const val PROP_SURFACE_VIEW = "persist.sys.lmofreeform.surface_view"
+        private const val HISTORY_CURRENT = -1
+        private const val SNAPSHOT_MAX_WAIT_MS = 500L
+        // how long a launch waits for WindowManager to apply the size of a claimed display
+        private const val DISPLAY_SIZE_TIMEOUT_MS = 1000L
+
+        // from the window request to the first frame of the app, over all launches
+        private var launchCount = 0L
+        private var launchTotalMs = 0L
+        private var launchMaxMs = 0L
+        private var lastLaunchMs = -1L
+
+        private fun recordLaunchLatency(latencyMs: Long) {
+            launchCount++
+            launchTotalMs += latencyMs
+            launchMaxMs = max(launchMaxMs, latencyMs)
+            lastLaunchMs = latencyMs
+        }
+
+        @JvmStatic
+        fun dump(pw: PrintWriter) {
+            pw.println("FreeformWindow:")
+            pw.print("  launches=$launchCount")
+            if (launchCount > 0) pw.print(" firstFrame last=${lastLaunchMs}ms avg=${launchTotalMs / launchCount}ms max=${launchMaxMs}ms")
+            pw.println()
+        }
     }
 
     init {
         if (LMOFreeformServiceHolder.ping()) {
             Slog.i(TAG, "FreeformWindow init")
+            // overlaps the process start with inflation and display creation, see onDisplayAdd()
+            if (appConfig.taskId == -1 && appConfig.userId != -100) {
+                LMOFreeformServiceHolder.prepareApp(context, appConfig)
+            }
             extractPackageInfo()
             populateFreeformConfig()
+            // a SurfaceView does not tell about new frames, it gets no launch placeholder
+            launching = !freeformConfig.useSurfaceView
             handler.post { if (!addFreeformView()) destroy("init:addFreeform failed") }
         } else {
             destroy("init:service not running")
@@ -79,11 +213,19 @@ class FreeformWindow(
     }
 
     override fun onDisplayPaused() {
-        //NOT USED
+        dlog(TAG, "onDisplayPaused displayId=$displayId")
+        handler.post {
+            isDisplayPaused = true
+            showSnapshot()
+        }
     }
 
     override fun onDisplayResumed() {
-        //NOT USED
+        dlog(TAG, "onDisplayResumed displayId=$displayId")
+        handler.post {
+            isDisplayPaused = false
+            hideSnapshotOnNextFrame()
+        }
     }
 
     override fun onDisplayStopped() {
@@ -93,53 +235,144 @@ class FreeformWindow(
     override fun onSurfaceTextureAvailable(surfaceTexture: SurfaceTexture, width: Int, height: Int) {
         dlog(TAG, "onSurfaceTextureAvailable width:$width height:$height")
         if (displayId < 0) {
-            LMOFreeformServiceHolder.createDisplay(freeformConfig, appConfig, Surface(surfaceTexture), this)
+            textureSurface = Surface(surfaceTexture)
+            LMOFreeformServiceHolder.createDisplay(freeformConfig, appConfig, textureSurface, this)
         }
-        surfaceTexture.setDefaultBufferSize(freeformConfig.freeformWidth, freeformConfig.freeformHeight)
+        surfaceTexture.setDefaultBufferSize(bufferSizeOf(freeformConfig.freeformWidth), bufferSizeOf(freeformConfig.freeformHeight))
     }
 
     override fun onSurfaceTextureSizeChanged(surfaceTexture: SurfaceTexture, width: Int, height: Int) {
-        surfaceTexture.setDefaultBufferSize(freeformConfig.freeformWidth, freeformConfig.freeformHeight)
+        surfaceTexture.setDefaultBufferSize(bufferSizeOf(freeformConfig.freeformWidth), bufferSizeOf(freeformConfig.freeformHeight))
     }
 
     override fun onSurfaceTextureDestroyed(surfaceTexture: SurfaceTexture): Boolean {
+        if (keepSurfaceTexture) {
+            keptSurfaceTexture = surfaceTexture
+            return false
+        }
+        LMOFreeformServiceHolder.setFreeformSurface(this, null)
+        textureSurface?.release()
+        textureSurface = null
         return true
     }
 
     override fun onSurfaceTextureUpdated(surfaceTexture: SurfaceTexture) {
+        if (launching) {
+            // frames before the task is on the display are empty
+            if (taskId == -1) return
+            launching = false
+            val latencyMs = SystemClock.uptimeMillis() - launchStartTime
+            Slog.i(TAG, "first frame of ${getFreeformId()} after ${latencyMs}ms")
+            recordLaunchLatency(latencyMs)
+        }
+        if (snapshotShown && !isDisplayPaused) hideSnapshot()
+    }
+
+    override fun surfaceCreated(holder: SurfaceHolder) {
+        dlog(TAG, "surfaceCreated")
+        holder.setFixedSize(bufferSizeOf(freeformConfig.freeformWidth), bufferSizeOf(freeformConfig.freeformHeight))
+        if (displayId < 0) {
+            LMOFreeformServiceHolder.createDisplay(freeformConfig, appConfig, holder.surface, this)
+        } else {
+            // the overlay was attached again, the previous surface is gone
+            LMOFreeformServiceHolder.setFreeformSurface(this, holder.surface)
+        }
+    }
+
+    override fun surfaceChanged(holder: SurfaceHolder, format: Int, width: Int, height: Int) {
         //NOT USED
     }
 
+    override fun surfaceDestroyed(holder: SurfaceHolder) {
+        dlog(TAG, "surfaceDestroyed")
+        // minimized or detached, stop rendering into the surface until surfaceCreated() attaches a new one
+        LMOFreeformServiceHolder.setFreeformSurface(this, null)
+    }
+
     override fun onDisplayAdd(displayId: Int) {
         Slog.i(TAG, "onDisplayAdd displayId=$displayId, $appConfig")
         handler.post {
             this.displayId = displayId
-            freeformTaskStackListener = FreeformTaskStackListener(displayId, this)
-            SystemServiceHolder.activityTaskManager.registerTaskStackListener(freeformTaskStackListener)
-            if (appConfig.taskId != -1) {
-                dlog(TAG, "moving taskId=${appConfig.taskId} to freeform display")
-                freeformTaskStackListener!!.taskId = appConfig.taskId
-                runCatching {
-                    if (SystemServiceHolder.activityTaskManager.getTaskDescription(appConfig.taskId) == null) {
-                        throw Exception("stale task")
-                    }
-                    SystemServiceHolder.activityTaskManager.moveRootTaskToDisplay(appConfig.taskId, displayId)
-                }
-                .onFailure { e ->
-                    Slog.e(TAG, "failed to move task ${appConfig.taskId}: $e, fallback to startApp")
-                    startApp()
-                }
-            } else if (appConfig.userId == -100) {
-                if (appConfig.pendingIntent == null) destroy("onDisplayAdd:userId=-100, but pendingIntent is null")
-                else {
-                    LMOFreeformServiceHolder.startPendingIntent(appConfig.pendingIntent, displayId)
+            FreeformVisibilityTracker.requestUpdate(handler)
+            FreeformTaskStackListener.attach(this, displayId)
+            launchWhenDisplaySized()
+        }
+    }
+
+    /**
+     * A display claimed from the pool starts at a placeholder size, WindowManager has to know the
+     * requested one before an activity is launched on it, or the first layout uses the placeholder
+     * Called in system handler
+     */
+    private fun launchWhenDisplaySized() {
+        if (isDisplaySizedInWindowManager()) {
+            launchOnDisplay()
+            return
+        }
+        launchPending = true
+        context.getSystemService(DisplayManager::class.java)
+            .registerDisplayListener(displaySizeListener, UiThread.getHandler())
+        handler.postDelayed(displaySizeTimeoutRunnable, DISPLAY_SIZE_TIMEOUT_MS)
+        // the display may have changed before the listener was registered
+        launchIfDisplaySized()
+    }
+
+    /**
+     * Called in system handler
+     */
+    private fun launchIfDisplaySized() {
+        if (!launchPending || closing || !isDisplaySizedInWindowManager()) return
+        stopWaitingForDisplaySize()
+        launchOnDisplay()
+    }
+
+    private fun stopWaitingForDisplaySize() {
+        if (!launchPending) return
+        launchPending = false
+        handler.removeCallbacks(displaySizeTimeoutRunnable)
+        context.getSystemService(DisplayManager::class.java).unregisterDisplayListener(displaySizeListener)
+    }
+
+    private fun isDisplaySizedInWindowManager(): Boolean {
+        return runCatching {
+            SystemServiceHolder.windowManager.getInitialDisplaySize(displayId, displaySize)
+            displaySize.x == freeformConfig.freeformWidth && displaySize.y == freeformConfig.freeformHeight
+                    && SystemServiceHolder.windowManager.getInitialDisplayDensity(displayId) == freeformConfig.freeformDensityDpi
+        }.getOrDefault(true)
+    }
+
+    /**
+     * Called in system handler
+     */
+    private fun launchOnDisplay() {
+        if (appConfig.taskId != -1) {
+            dlog(TAG, "moving taskId=${appConfig.taskId} to freeform display")
+            FreeformTaskStackListener.setTaskId(this, appConfig.taskId)
+            runCatching {
+                if (SystemServiceHolder.activityTaskManager.getTaskDescription(appConfig.taskId) == null) {
+                    throw Exception("stale task")
                 }
-            } else {
+                SystemServiceHolder.activityTaskManager.moveRootTaskToDisplay(appConfig.taskId, displayId)
+            }
+            .onFailure { e ->
+                Slog.e(TAG, "failed to move task ${appConfig.taskId}: $e, fallback to startApp")
                 startApp()
             }
+        } else if (appConfig.userId == -100) {
+            if (appConfig.pendingIntent == null) destroy("onDisplayAdd:userId=-100, but pendingIntent is null")
+            else {
+                LMOFreeformServiceHolder.startPendingIntent(appConfig.pendingIntent, displayId)
+            }
+        } else {
+            startApp()
         }
     }
 
+    override fun onDisplayAddFailed() {
+        Slog.e(TAG, "onDisplayAddFailed $appConfig")
+        handler.post { destroy("onDisplayAddFailed") }
+    }
+
     private fun startApp() {
         if (displayId == Display.INVALID_DISPLAY) {
             Slog.e(TAG, "cannot startApp: displayId not yet set!")
@@ -159,36 +392,82 @@ class FreeformWindow(
                 flags xor WindowManager.LayoutParams.FLAG_SECURE
             }
         }
-        handler.post {
-            runCatching { windowManager.updateViewLayout(freeformLayout, windowParams) }
-                .onFailure { Slog.e(TAG, "updateViewLayout failed: $it") }
-        }
+        handler.post { updateWindowLayout() }
     }
 
     @SuppressLint("ClickableViewAccessibility")
     override fun onTouch(view: View, event: MotionEvent): Boolean {
-        val pointerCoords: Array<MotionEvent.PointerCoords?> = arrayOfNulls(event.pointerCount)
-        val pointerProperties: Array<MotionEvent.PointerProperties?> = arrayOfNulls(event.pointerCount)
-        for (i in 0 until event.pointerCount) {
-            val oldCoords = MotionEvent.PointerCoords()
-            val pointerProperty = MotionEvent.PointerProperties()
-            event.getPointerCoords(i, oldCoords)
-            event.getPointerProperties(i, pointerProperty)
-            pointerCoords[i] = oldCoords
-            pointerCoords[i]!!.apply {
-                x = oldCoords.x * freeformConfig.scale
-                y = oldCoords.y * freeformConfig.scale
+        forwardMotionEvent(event)
+        return true
+    }
+
+    override fun onGenericMotion(view: View, event: MotionEvent): Boolean {
+        return onGenericPointerEvent(event)
+    }
+
+    override fun onHover(view: View, event: MotionEvent): Boolean {
+        return onGenericPointerEvent(event)
+    }
+
+    /**
+     * Hover, scroll wheel and stylus hover events. HOVER_MOVE and SCROLL are coalesced to one
+     * injection per frame, scroll amounts are summed up
+     */
+    private fun onGenericPointerEvent(event: MotionEvent): Boolean {
+        if (freeformConfig.isHangUp || !event.isFromSource(InputDevice.SOURCE_CLASS_POINTER)) return false
+        when (val action = event.actionMasked) {
+            MotionEvent.ACTION_HOVER_MOVE, MotionEvent.ACTION_SCROLL -> {
+                pendingGenericEvent?.let {
+                    if (it.actionMasked != action) flushGenericMotion()
+                    else it.recycle()
+                }
+                pendingGenericEvent = MotionEvent.obtain(event)
+                if (action == MotionEvent.ACTION_SCROLL) {
+                    pendingVScroll += event.getAxisValue(MotionEvent.AXIS_VSCROLL)
+                    pendingHScroll += event.getAxisValue(MotionEvent.AXIS_HSCROLL)
+                }
+                if (!genericFramePosted) {
+                    genericFramePosted = true
+                    Choreographer.getInstance().postFrameCallback(genericFrameCallback)
+                }
+            }
+            else -> {
+                flushGenericMotion()
+                forwardMotionEvent(event)
             }
-            pointerProperties[i] = pointerProperty
+        }
+        return true
+    }
+
+    private fun flushGenericMotion() {
+        val event = pendingGenericEvent ?: return
+        forwardMotionEvent(event)
+        pendingGenericEvent = null
+        pendingVScroll = 0f
+        pendingHScroll = 0f
+        event.recycle()
+    }
+
+    /**
+     * Forwards the whole batch as one event: the oldest sample starts the event and the
+     * remaining historical samples and the current one are appended with addBatch
+     */
+    private fun forwardMotionEvent(event: MotionEvent) {
+        val pointerCount = event.pointerCount
+        val historySize = event.historySize
+        ensureTouchPointerCapacity(pointerCount)
+        for (i in 0 until pointerCount) {
+            event.getPointerProperties(i, touchPointerProperties[i])
         }
 
+        fillTouchPointerCoords(event, if (historySize > 0) 0 else HISTORY_CURRENT)
         val newEvent = MotionEvent.obtain(
             event.downTime,
-            event.eventTime,
+            if (historySize > 0) event.getHistoricalEventTime(0) else event.eventTime,
             event.action,
-            event.pointerCount,
-            pointerProperties,
-            pointerCoords,
+            pointerCount,
+            touchPointerProperties,
+            touchPointerCoords,
             event.metaState,
             event.buttonState,
             event.xPrecision,
@@ -198,15 +477,59 @@ class FreeformWindow(
             event.source,
             event.flags
         )
+        for (h in 1 until historySize) {
+            fillTouchPointerCoords(event, h)
+            newEvent.addBatch(event.getHistoricalEventTime(h), touchPointerCoords, event.metaState)
+        }
+        if (historySize > 0) {
+            fillTouchPointerCoords(event, HISTORY_CURRENT)
+            newEvent.addBatch(event.eventTime, touchPointerCoords, event.metaState)
+        }
+        // recycled by the input forwarder once injected
         LMOFreeformServiceHolder.touch(newEvent, displayId)
-        newEvent.recycle()
-        return true
+    }
+
+    /**
+     * Copy the pointer coordinates of one sample into touchPointerCoords, scaled to the freeform display
+     * @param historyPos historical sample index or HISTORY_CURRENT
+     */
+    private fun fillTouchPointerCoords(event: MotionEvent, historyPos: Int) {
+        for (i in 0 until event.pointerCount) {
+            val coords = touchPointerCoords[i]
+            if (historyPos == HISTORY_CURRENT) event.getPointerCoords(i, coords)
+            else event.getHistoricalPointerCoords(i, historyPos, coords)
+            coords.x *= freeformConfig.scale
+            coords.y *= freeformConfig.scale
+        }
+        if (historyPos == HISTORY_CURRENT && event.actionMasked == MotionEvent.ACTION_SCROLL
+                && event === pendingGenericEvent) {
+            touchPointerCoords[0].setAxisValue(MotionEvent.AXIS_VSCROLL, pendingVScroll)
+            touchPointerCoords[0].setAxisValue(MotionEvent.AXIS_HSCROLL, pendingHScroll)
+        }
+    }
+
+    /**
+     * The pointer structures are reused for every forwarded event, they only grow
+     * when more pointers are down than ever before
+     */
+    private fun ensureTouchPointerCapacity(pointerCount: Int) {
+        if (touchPointerCoords.size >= pointerCount) return
+        val coords = touchPointerCoords
+        val properties = touchPointerProperties
+        touchPointerCoords = Array(pointerCount) { coords.getOrNull(it) ?: MotionEvent.PointerCoords() }
+        touchPointerProperties = Array(pointerCount) { properties.getOrNull(it) ?: MotionEvent.PointerProperties() }
     }
 
     /**
      * get freeform screen dimen / freeform view dimen
      */
     private fun populateFreeformConfig() {
+        freeformConfig.renderScale = readRenderScale(
+            "$PROP_RENDER_SCALE.${appConfig.packageName}",
+            readRenderScale(PROP_RENDER_SCALE, freeformConfig.renderScale)
+        )
+        freeformConfig.hangUpRenderScale = readRenderScale(PROP_HANG_UP_RENDER_SCALE, freeformConfig.hangUpRenderScale)
+        freeformConfig.useSurfaceView = SystemProperties.getBoolean(PROP_SURFACE_VIEW, freeformConfig.useSurfaceView)
         measureScale()
         context.display.getDisplayInfo(defaultDisplayInfo)
         freeformConfig.refreshRate = defaultDisplayInfo.refreshRate
@@ -214,12 +537,80 @@ class FreeformWindow(
         dlog(TAG, "populateFreeformConfig: $freeformConfig")
     }
 
+    private fun readRenderScale(prop: String, def: Float): Float {
+        return SystemProperties.get(prop).toFloatOrNull()?.coerceIn(MIN_RENDER_SCALE, 1.0f) ?: def
+    }
+
+    /**
+     * Scale covers the render scale too, so touch coordinates stay correct when
+     * multiplied by it
+     */
     fun measureScale() {
         val widthScale = min(defaultDisplayWidth, defaultDisplayHeight) * 1.0f / min(freeformConfig.width, freeformConfig.height)
         val heightScale = max(defaultDisplayWidth, defaultDisplayHeight) * 1.0f / max(freeformConfig.width, freeformConfig.height)
-        freeformConfig.scale = min(widthScale, heightScale)
+        freeformConfig.scale = min(widthScale, heightScale) * freeformConfig.renderScale
         freeformConfig.freeformWidth = (freeformConfig.width * freeformConfig.scale).roundToInt()
         freeformConfig.freeformHeight = (freeformConfig.height * freeformConfig.scale).roundToInt()
+        freeformConfig.freeformDensityDpi = (freeformConfig.densityDpi * freeformConfig.renderScale).roundToInt()
+    }
+
+    /**
+     * While hung up only the buffer of the freeform display shrinks to hangUpRenderScale,
+     * its size and density stay, so the app is not reconfigured
+     */
+    private fun freeformBufferScale(): Float {
+        if (!freeformConfig.isHangUp) return 1.0f
+        return min(1.0f, freeformConfig.hangUpRenderScale / freeformConfig.renderScale)
+    }
+
+    /**
+     * Same rounding as LMOFreeformDisplayAdapter
+     */
+    private fun bufferSizeOf(displaySize: Int): Int {
+        return max(1, (displaySize * freeformBufferScale()).roundToInt())
+    }
+
+    /**
+     * Called in system handler
+     */
+    private fun updateFreeformBufferScale() {
+        if (!hasFreeformSurface()) return
+        LMOFreeformServiceHolder.setFreeformBufferScale(this, freeformBufferScale()) {
+            setFreeformBufferSize(freeformConfig.freeformWidth, freeformConfig.freeformHeight)
+        }
+    }
+
+    /**
+     * Resize the freeform display to the current freeformConfig width and height
+     * Called in system handler
+     */
+    fun resizeFreeformDisplay() {
+        if (!hasFreeformSurface()) return
+        measureScale()
+        val width = freeformConfig.freeformWidth
+        val height = freeformConfig.freeformHeight
+        LMOFreeformServiceHolder.resizeFreeform(this, width, height, freeformConfig.freeformDensityDpi) {
+            // the display has its new size now, match the buffer to it
+            setFreeformBufferSize(width, height)
+        }
+    }
+
+    fun hasFreeformSurface(): Boolean {
+        return when (val view = freeformView) {
+            is SurfaceView -> view.holder.surface.isValid
+            is TextureView -> view.surfaceTexture != null
+            else -> false
+        }
+    }
+
+    /**
+     * @param width display width, the buffer is scaled by freeformBufferScale()
+     */
+    private fun setFreeformBufferSize(width: Int, height: Int) {
+        when (val view = freeformView) {
+            is SurfaceView -> view.holder.setFixedSize(bufferSizeOf(width), bufferSizeOf(height))
+            is TextureView -> view.surfaceTexture?.setDefaultBufferSize(bufferSizeOf(width), bufferSizeOf(height))
+        }
     }
 
     /**
@@ -228,7 +619,7 @@ class FreeformWindow(
     @SuppressLint("WrongConstant")
     private fun addFreeformView(): Boolean {
         dlog(TAG, "addFreeformView")
-        val tmpFreeformLayout = resourceHolder.getLayout(FREEFORM_LAYOUT)!! ?: return false
+        val tmpFreeformLayout = resourceHolder.getLayout(FREEFORM_LAYOUT) ?: return false
         freeformLayout = tmpFreeformLayout
         freeformRootView = resourceHolder.getLayoutChildViewByTag<FrameLayout>(freeformLayout, "freeform_root") ?: return false
         topBarView = resourceHolder.getLayoutChildViewByTag(freeformLayout, "topBarView") ?: return false
@@ -252,15 +643,20 @@ class FreeformWindow(
         appIconView.setImageDrawable(appIcon)
         packageNameView.text = appPackageName
         minimizeView.setOnClickListener(LeftViewClickListener(this))
+        minimizeView.setOnLongClickListener(MinimizeLongClickListener(this))
         maximizeView.setOnClickListener(MaximizeClickListener(this))
         pinView.setOnClickListener(PinClickListener(this))
         leftScaleView.setOnTouchListener(ScaleTouchListener(this, false))
         rightScaleView.setOnTouchListener(ScaleTouchListener(this))
 
-        freeformView = FreeformTextureView(context).apply {
-            setOnTouchListener(this@FreeformWindow)
-            surfaceTextureListener = this@FreeformWindow
+        freeformView = if (freeformConfig.useSurfaceView) {
+            FreeformSurfaceView(context).apply { holder.addCallback(this@FreeformWindow) }
+        } else {
+            FreeformTextureView(context).apply { surfaceTextureListener = this@FreeformWindow }
         }
+        freeformView.setOnTouchListener(this)
+        freeformView.setOnGenericMotionListener(this)
+        freeformView.setOnHoverListener(this)
         freeformRootView.layoutParams = freeformRootView.layoutParams.apply {
             width = freeformConfig.width
             height = freeformConfig.height
@@ -278,9 +674,13 @@ class FreeformWindow(
             format = PixelFormat.RGBA_8888
             windowAnimations = android.R.style.Animation_Dialog
         }
-        SystemServiceHolder.windowManager.watchRotation(rotationWatcher, Display.DEFAULT_DISPLAY)
+        // fix the surface insets so the rest position of the surface is known, see moveWindowTo()
+        windowParams.setSurfaceInsets(freeformLayout, true, false)
+        if (launching) showLaunchPlaceholder()
         runCatching {
             windowManager.addView(freeformLayout, windowParams)
+            committedX = windowParams.x
+            committedY = windowParams.y
             windowManagerInt.registerDisplaySecureContentListener(this)
         }.onFailure {
             Slog.e(TAG, "addView failed: $it")
@@ -294,6 +694,7 @@ class FreeformWindow(
      */
     @SuppressLint("ClickableViewAccessibility")
     fun handleHangUp() {
+        if (!ownsLayout()) return
         if (freeformConfig.isHangUp) {
             windowParams.apply {
                 x = freeformConfig.notInHangUpX
@@ -304,11 +705,13 @@ class FreeformWindow(
                 width = freeformConfig.width
                 height = freeformConfig.height
             }
-            windowManager.updateViewLayout(freeformLayout, windowParams)
+            updateWindowLayout()
             topBarView.visibility = View.VISIBLE
             bottomBarView.visibility = View.VISIBLE
             freeformConfig.isHangUp = false
             freeformView.setOnTouchListener(this)
+            FreeformVisibilityTracker.requestUpdate(handler)
+            updateFreeformBufferScale()
         } else {
             freeformConfig.notInHangUpX = windowParams.x
             freeformConfig.notInHangUpY = windowParams.y
@@ -316,10 +719,15 @@ class FreeformWindow(
             topBarView.visibility = View.GONE
             bottomBarView.visibility = View.GONE
             freeformConfig.isHangUp = true
+            FreeformVisibilityTracker.requestUpdate(handler)
+            updateFreeformBufferScale()
             val gestureDetector = GestureDetector(context, hangUpGestureListener)
             freeformView.setOnTouchListener { _, event ->
                 gestureDetector.onTouchEvent(event)
-                if (event.action == MotionEvent.ACTION_UP) makeSureFreeformInScreen()
+                if (event.action == MotionEvent.ACTION_UP || event.action == MotionEvent.ACTION_CANCEL) {
+                    commitWindowPosition()
+                    makeSureFreeformInScreen()
+                }
                 true
             }
         }
@@ -329,6 +737,7 @@ class FreeformWindow(
      * Called in system handler
      */
     fun toHangUp() {
+        if (!ownsLayout()) return
         windowParams.apply {
             x = (defaultDisplayWidth / 2 - freeformConfig.hangUpWidth / 2)
             y = -(defaultDisplayHeight / 2 - freeformConfig.hangUpHeight / 2)
@@ -338,13 +747,92 @@ class FreeformWindow(
             width = freeformConfig.hangUpWidth
             height = freeformConfig.hangUpHeight
         }
-        runCatching { windowManager.updateViewLayout(freeformLayout, windowParams) }.onFailure { Slog.e(TAG, "$it") }
+        updateWindowLayout()
+    }
+
+    /**
+     * Move the window during a drag or animation by only repositioning its surface, at most
+     * once per frame. WindowManager is updated by commitWindowPosition()
+     * Called in system handler
+     */
+    fun moveWindowTo(x: Int, y: Int) {
+        windowParams.x = x
+        windowParams.y = y
+        if (!moveFramePosted) {
+            moveFramePosted = true
+            Choreographer.getInstance().postFrameCallback(moveFrameCallback)
+        }
+    }
+
+    private fun applySurfacePosition() {
+        if (!ownsLayout()) return
+        val surfaceControl = freeformLayout.viewRootImpl?.surfaceControl
+        if (surfaceControl == null || !surfaceControl.isValid) {
+            updateWindowLayout()
+            return
+        }
+        moveTransaction.setPosition(
+            surfaceControl,
+            (windowParams.x - committedX - windowParams.surfaceInsets.left).toFloat(),
+            (windowParams.y - committedY - windowParams.surfaceInsets.top).toFloat()
+        ).apply()
+        surfaceMoved = true
+    }
+
+    /**
+     * Send the position reached by moveWindowTo() to WindowManager
+     * Called in system handler
+     */
+    fun commitWindowPosition() {
+        if (moveFramePosted || surfaceMoved || windowParams.x != committedX || windowParams.y != committedY) {
+            updateWindowLayout()
+        }
+    }
+
+    /**
+     * Relayout the window with windowParams and drop any surface-only offset
+     * Called in system handler
+     */
+    fun updateWindowLayout() {
+        if (moveFramePosted) {
+            Choreographer.getInstance().removeFrameCallback(moveFrameCallback)
+            moveFramePosted = false
+        }
+        if (!ownsLayout()) return
+        runCatching { windowManager.updateViewLayout(freeformLayout, windowParams) }
+            .onFailure { Slog.e(TAG, "updateViewLayout failed: $it") }
+        committedX = windowParams.x
+        committedY = windowParams.y
+        if (surfaceMoved) {
+            surfaceMoved = false
+            val surfaceControl = freeformLayout.viewRootImpl?.surfaceControl ?: return
+            // back to the rest position together with the frame drawn at the new window position
+            freeformLayout.viewRootImpl?.applyTransactionOnDraw(
+                SurfaceControl.Transaction().setPosition(
+                    surfaceControl,
+                    -windowParams.surfaceInsets.left.toFloat(),
+                    -windowParams.surfaceInsets.top.toFloat()
+                )
+            )
+        }
     }
 
     /**
      * Called in uiHandler
      */
     fun makeSureFreeformInScreen() {
+        if (!ownsLayout()) return
+        fitInScreen(inScreenPosition)
+        if (inScreenPosition.x != windowParams.x) FreeformAnimation.moveInScreenAnimator(windowParams.x, inScreenPosition.x, 300, true, this)
+        if (inScreenPosition.y != windowParams.y) FreeformAnimation.moveInScreenAnimator(windowParams.y, inScreenPosition.y, 300, false, this)
+    }
+
+    /**
+     * Shrink the window to the screen unless it is hung up, and compute the closest position
+     * that keeps it in the screen, shared by makeSureFreeformInScreen() and relayoutForScreen()
+     * Called in system handler
+     */
+    private fun fitInScreen(outPosition: Point) {
         if (!freeformConfig.isHangUp) {
             val maxWidth = defaultDisplayWidth
             val maxHeight = (defaultDisplayHeight * 0.9).roundToInt()
@@ -355,10 +843,41 @@ class FreeformWindow(
                 }
             }
         }
-        if (windowParams.x < -(defaultDisplayWidth / 2)) FreeformAnimation.moveInScreenAnimator(windowParams.x, -(defaultDisplayWidth / 2), 300, true, this)
-        else if (windowParams.x > (defaultDisplayWidth / 2)) FreeformAnimation.moveInScreenAnimator(windowParams.x, (defaultDisplayWidth / 2), 300, true, this)
-        if (windowParams.y < -(defaultDisplayHeight / 2)) FreeformAnimation.moveInScreenAnimator(windowParams.y, -(defaultDisplayHeight / 2), 300, false, this)
-        else if (windowParams.y > (defaultDisplayHeight / 2)) FreeformAnimation.moveInScreenAnimator(windowParams.y, (defaultDisplayHeight / 2), 300, false, this)
+        outPosition.set(
+            windowParams.x.coerceIn(-(defaultDisplayWidth / 2), defaultDisplayWidth / 2),
+            windowParams.y.coerceIn(-(defaultDisplayHeight / 2), defaultDisplayHeight / 2)
+        )
+    }
+
+    /**
+     * Fit the window into a screen of the given size without animating, see FreeformRotationWatcher.
+     * The surface is moved in t, WindowManager is updated by commitWindowPosition()
+     * @return false if nothing changed
+     * Called in system handler
+     */
+    fun relayoutForScreen(screenWidth: Int, screenHeight: Int, t: SurfaceControl.Transaction): Boolean {
+        if (screenWidth == defaultDisplayWidth && screenHeight == defaultDisplayHeight) return false
+        defaultDisplayWidth = screenWidth
+        defaultDisplayHeight = screenHeight
+        if (!ownsLayout() || !freeformLayout.isAttachedToWindow) return true
+        if (freeformConfig.isHangUp) {
+            windowParams.x = defaultDisplayWidth / 2 - freeformConfig.hangUpWidth / 2
+            windowParams.y = -(defaultDisplayHeight / 2 - freeformConfig.hangUpHeight / 2)
+        } else {
+            fitInScreen(inScreenPosition)
+            windowParams.x = inScreenPosition.x
+            windowParams.y = inScreenPosition.y
+        }
+        val surfaceControl = freeformLayout.viewRootImpl?.surfaceControl
+        if (surfaceControl != null && surfaceControl.isValid) {
+            t.setPosition(
+                surfaceControl,
+                (windowParams.x - committedX - windowParams.surfaceInsets.left).toFloat(),
+                (windowParams.y - committedY - windowParams.surfaceInsets.top).toFloat()
+            )
+            surfaceMoved = true
+        }
+        return true
     }
 
     /**
@@ -366,20 +885,282 @@ class FreeformWindow(
      * Called in system handler
      */
     fun changeOrientation() {
+        if (!ownsLayout()) return
         freeformRootView.layoutParams = freeformRootView.layoutParams.apply {
             width = if (freeformConfig.isHangUp) freeformConfig.hangUpWidth else freeformConfig.width
             height = if (freeformConfig.isHangUp) freeformConfig.hangUpHeight else freeformConfig.height
         }
     }
 
+    /**
+     * Called in system handler
+     */
+    fun onTaskSnapshotChanged(snapshot: TaskSnapshot) {
+        val buffer = snapshot.hardwareBuffer ?: return
+        if (buffer.isClosed) return
+        // the bitmap holds its own reference to the buffer, the snapshot stays with WindowManager
+        val bitmap = Bitmap.wrapHardwareBuffer(buffer, snapshot.colorSpace) ?: return
+        val previous = snapshotBitmap
+        snapshotBitmap = bitmap
+        launchSnapshot = false
+        if (snapshotShown) showSnapshot()
+        recycleSnapshotBitmap(previous)
+    }
+
+    /**
+     * Cover the freeform display with the latest task snapshot
+     * Called in system handler
+     */
+    private fun showSnapshot(): Boolean {
+        if (!ownsLayout()) return false
+        val bitmap = snapshotBitmap ?: return false
+        val view = obtainSnapshotView()
+        view.scaleType = ImageView.ScaleType.FIT_XY
+        view.background = null
+        view.setImageBitmap(bitmap)
+        view.visibility = View.VISIBLE
+        snapshotShown = true
+        val previous = shownBitmap
+        shownBitmap = bitmap
+        recycleSnapshotBitmap(previous)
+        return true
+    }
+
+    /**
+     * Cover the freeform display until the app draws its first frame: with the last task
+     * snapshot if there is one, else with the app icon on its background color
+     * Called in system handler
+     */
+    private fun showLaunchPlaceholder() {
+        if (!ownsLayout() || showSnapshot()) return
+        val view = obtainSnapshotView()
+        view.scaleType = ImageView.ScaleType.CENTER
+        view.setBackgroundColor(appBackgroundColor)
+        // the header shows appIcon too, a drawable has only one set of bounds
+        view.setImageDrawable(appIcon?.constantState?.newDrawable(context.resources))
+        view.visibility = View.VISIBLE
+        snapshotShown = true
+        val shown = shownBitmap
+        shownBitmap = null
+        recycleSnapshotBitmap(shown)
+    }
+
+    private fun obtainSnapshotView(): ImageView {
+        return snapshotView ?: ImageView(context).apply {
+            freeformRootView.addView(this, ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT)
+            snapshotView = this
+        }
+    }
+
+    /**
+     * Snapshot of the window this one replaces, used as launch placeholder.
+     * This window owns the bitmap from now on, see takeSnapshotBitmap()
+     * Called in system handler
+     */
+    fun useLaunchSnapshot(bitmap: Bitmap?) {
+        if (snapshotBitmap == null) {
+            snapshotBitmap = bitmap
+            launchSnapshot = bitmap != null
+        } else {
+            bitmap?.recycle()
+        }
+    }
+
+    /**
+     * Hand the latest snapshot over to the window replacing this one, see FreeformWindowManager.addWindow
+     * Called in system handler
+     */
+    fun takeSnapshotBitmap(): Bitmap? {
+        val bitmap = snapshotBitmap
+        snapshotBitmap = null
+        if (shownBitmap === bitmap) shownBitmap = null
+        return bitmap
+    }
+
+    /**
+     * A TextureView drops the snapshot with the first new frame, see onSurfaceTextureUpdated(),
+     * or after SNAPSHOT_MAX_WAIT_MS if the app does not draw
+     * Called in system handler
+     */
+    private fun hideSnapshotOnNextFrame() {
+        if (!snapshotShown) return
+        if (freeformView is TextureView) {
+            handler.removeCallbacks(hideSnapshotRunnable)
+            handler.postDelayed(hideSnapshotRunnable, SNAPSHOT_MAX_WAIT_MS)
+        } else {
+            freeformView.postOnAnimation(hideSnapshotRunnable)
+        }
+    }
+
+    /**
+     * Called in system handler
+     */
+    private fun hideSnapshot() {
+        if (!snapshotShown) return
+        snapshotShown = false
+        handler.removeCallbacks(hideSnapshotRunnable)
+        snapshotView?.visibility = View.GONE
+        snapshotView?.setImageDrawable(null)
+        snapshotView?.background = null
+        val shown = shownBitmap
+        shownBitmap = null
+        recycleSnapshotBitmap(shown)
+        // the launch snapshot shows the replaced task, it is of no use once the app has drawn
+        if (launchSnapshot) {
+            launchSnapshot = false
+            val bitmap = snapshotBitmap
+            snapshotBitmap = null
+            recycleSnapshotBitmap(bitmap)
+        }
+    }
+
+    /**
+     * Called in system handler
+     */
+    private fun releaseSnapshotBitmaps() {
+        // the overlay may still be attached if its removal failed
+        snapshotView?.setImageDrawable(null)
+        val shown = shownBitmap
+        val latest = snapshotBitmap
+        shownBitmap = null
+        snapshotBitmap = null
+        launchSnapshot = false
+        recycleSnapshotBitmap(shown)
+        recycleSnapshotBitmap(latest)
+    }
+
+    /**
+     * Drops the reference of a bitmap to its snapshot buffer once it is neither shown nor the latest
+     */
+    private fun recycleSnapshotBitmap(bitmap: Bitmap?) {
+        if (bitmap == null || bitmap === snapshotBitmap || bitmap === shownBitmap) return
+        bitmap.recycle()
+    }
+
+    /**
+     * Frame of the freeform window in screen coordinates
+     * @return false if the window is not shown at all
+     * Called in system handler
+     */
+    fun getWindowFrame(outRect: Rect): Boolean {
+        if (!ownsLayout() || !freeformLayout.isAttachedToWindow
+                || freeformLayout.visibility != View.VISIBLE) return false
+        // the window has no gravity, so x and y are offsets from the screen center
+        val left = (defaultDisplayWidth - freeformLayout.width) / 2 + windowParams.x
+        val top = (defaultDisplayHeight - freeformLayout.height) / 2 + windowParams.y
+        outRect.set(left, top, left + freeformLayout.width, top + freeformLayout.height)
+        return true
+    }
+
+    /**
+     * Stop or restart composition into the freeform display, see FreeformVisibilityTracker
+     * Called in system handler
+     */
+    fun setDisplayPaused(paused: Boolean) {
+        if (displayId == Display.INVALID_DISPLAY || paused == displayPauseRequested) return
+        dlog(TAG, "setDisplayPaused $paused displayId=$displayId")
+        displayPauseRequested = paused
+        LMOFreeformServiceHolder.setFreeformPaused(this, paused)
+    }
+
     fun getFreeformId(): String {
         return "${appConfig.packageName},${appConfig.activityName},${appConfig.userId}"
     }
 
+    /**
+     * Whether a request to open the same app with this size and density can be served by this window
+     * Called in system handler
+     */
+    fun canReuse(width: Int, height: Int, densityDpi: Int): Boolean {
+        if (closing || densityDpi != requestedDensityDpi) return false
+        // the task may have turned the window since
+        return min(width, height) == min(requestedWidth, requestedHeight)
+                && max(width, height) == max(requestedWidth, requestedHeight)
+    }
+
+    /**
+     * Show the window above all other freeform windows again, keeping its display and task
+     * Called in system handler
+     */
+    fun bringToFront() {
+        dlog(TAG, "bringToFront displayId=$displayId minimized=$isMinimized")
+        if (isMinimized) {
+            restore()
+            return
+        }
+        if (!ownsLayout() || !freeformLayout.isAttachedToWindow) return
+        if (freeformConfig.isHangUp) handleHangUp()
+        // raise the overlay in place, adding it again would animate it and rebuild its surface
+        val windowToken = freeformLayout.windowToken
+        if (windowToken == null || !LMOFreeformWindowStacker.moveWindowToTop(windowToken)) {
+            Slog.w(TAG, "bringToFront: window of displayId=$displayId not found")
+        }
+        makeSureFreeformInScreen()
+        FreeformVisibilityTracker.requestUpdate(handler)
+    }
+
+    /**
+     * Remove the overlay but keep the display and the task, restore() shows it again.
+     * FreeformVisibilityTracker pauses the display while minimized.
+     * Called in system handler
+     */
+    fun minimize() {
+        if (isMinimized || closing || !ownsLayout() || !freeformLayout.isAttachedToWindow) return
+        dlog(TAG, "minimize displayId=$displayId")
+        if (freeformConfig.isHangUp) handleHangUp()
+        showSnapshot()
+        if (!detachOverlay()) return
+        isMinimized = true
+        FreeformWindowManager.onWindowMinimized(this)
+        FreeformVisibilityTracker.requestUpdate(handler)
+    }
+
+    /**
+     * Called in system handler
+     */
+    fun restore() {
+        if (!isMinimized || closing || !ownsLayout()) return
+        dlog(TAG, "restore displayId=$displayId")
+        isMinimized = false
+        FreeformWindowManager.onWindowRestored(this)
+        attachOverlay()
+        if (!displayPauseRequested) hideSnapshotOnNextFrame()
+        makeSureFreeformInScreen()
+        FreeformVisibilityTracker.requestUpdate(handler)
+    }
+
+    /**
+     * A TextureView hands its SurfaceTexture to keptSurfaceTexture, so the display keeps its surface
+     */
+    private fun detachOverlay(): Boolean {
+        if (!ownsLayout()) return false
+        commitWindowPosition()
+        keepSurfaceTexture = true
+        val removed = runCatching { windowManager.removeViewImmediate(freeformLayout) }
+            .onFailure { Slog.e(TAG, "detachOverlay failed: $it") }
+            .isSuccess
+        keepSurfaceTexture = false
+        return removed
+    }
+
+    private fun attachOverlay() {
+        if (!ownsLayout()) return
+        val textureView = freeformView as? TextureView
+        keptSurfaceTexture?.let { textureView?.setSurfaceTexture(it) }
+        keptSurfaceTexture = null
+        runCatching {
+            windowManager.addView(freeformLayout, windowParams)
+            committedX = windowParams.x
+            committedY = windowParams.y
+        }.onFailure { Slog.e(TAG, "attachOverlay failed: $it") }
+    }
+
     fun close() {
         dlog(TAG, "close()")
+        closing = true
         runCatching {
-            SystemServiceHolder.activityTaskManager.removeTask(freeformTaskStackListener!!.taskId)
+            if (taskId == -1) throw Exception("no task")
+            SystemServiceHolder.activityTaskManager.removeTask(taskId)
             removeView()
         }.onFailure { exception ->
             Slog.e(TAG, "removeTask failed: ", exception)
@@ -391,6 +1172,7 @@ class FreeformWindow(
         dlog(TAG, "removeView($runDestroy)")
         handler.removeCallbacks(destroyRunnable)
         handler.post {
+            if (!ownsLayout()) return@post
             runCatching {
                 windowManager.removeViewImmediate(freeformLayout)
                 dlog(TAG, "removeView success")
@@ -405,25 +1187,69 @@ class FreeformWindow(
 
     fun destroy(callReason: String) {
         Slog.i(TAG, "destroy ${getFreeformId()}, displayId=$displayId callReason: $callReason")
+        closing = true
         removeView(false)
         handler.removeCallbacks(destroyRunnable)
-        SystemServiceHolder.activityTaskManager.unregisterTaskStackListener(freeformTaskStackListener)
-        SystemServiceHolder.windowManager.removeRotationWatcher(rotationWatcher)
+        handler.post {
+            if (genericFramePosted) Choreographer.getInstance().removeFrameCallback(genericFrameCallback)
+            genericFramePosted = false
+            pendingGenericEvent?.recycle()
+            pendingGenericEvent = null
+            if (moveFramePosted) Choreographer.getInstance().removeFrameCallback(moveFrameCallback)
+            moveFramePosted = false
+            stopWaitingForDisplaySize()
+            keptSurfaceTexture?.release()
+            keptSurfaceTexture = null
+            textureSurface?.release()
+            textureSurface = null
+            recycleFreeformLayout()
+            releaseSnapshotBitmaps()
+        }
+        FreeformTaskStackListener.detach(this)
         LMOFreeformServiceHolder.releaseFreeform(this)
         FreeformWindowManager.removeWindow(getFreeformId())
         windowManagerInt.unregisterDisplaySecureContentListener(this)
     }
     
-    private fun extractPackageInfo() {
-        try {
-            val pm = context.packageManager
-            val ai = pm.getApplicationInfo(appConfig.packageName, 0)
-            appPackageName = pm.getApplicationLabel(ai).toString()
-            appIcon = pm.getApplicationIcon(ai)
-        } catch (e: Exception) {
-            Slog.e(TAG, "Failed to retrieve app info: ${e.message}")
-            appPackageName = ""
-            appIcon = null
+    /**
+     * Whether freeformLayout was set up by this window and not handed to another one since,
+     * it must not be touched otherwise
+     */
+    fun ownsLayout(): Boolean {
+        return !layoutRecycled && this::freeformRootView.isInitialized
+    }
+
+    /**
+     * Reset the removed overlay and give it back to resourceHolder for the next window
+     * Called in system handler
+     */
+    private fun recycleFreeformLayout() {
+        if (layoutRecycled || !this::freeformLayout.isInitialized || freeformLayout.isAttachedToWindow) return
+        layoutRecycled = true
+        // addFreeformView() gave up half way, do not reuse it
+        if (!this::bottomBarView.isInitialized) return
+        snapshotView?.let { freeformRootView.removeView(it) }
+        snapshotView = null
+        if (this::freeformView.isInitialized) freeformRootView.removeView(freeformView)
+        topBarView.setOnTouchListener(null)
+        bottomBarView.setOnTouchListener(null)
+        topBarView.visibility = View.VISIBLE
+        bottomBarView.visibility = View.VISIBLE
+        resourceHolder.getLayoutChildViewByTag<ImageView>(freeformLayout, "appIcon")?.setImageDrawable(null)
+        for (tag in arrayOf("maximizeView", "minimizeView", "pinView")) {
+            resourceHolder.getLayoutChildViewByTag<View>(freeformLayout, tag)?.setOnClickListener(null)
         }
+        resourceHolder.getLayoutChildViewByTag<View>(freeformLayout, "minimizeView")?.setOnLongClickListener(null)
+        for (tag in arrayOf("leftScaleView", "rightScaleView")) {
+            resourceHolder.getLayoutChildViewByTag<View>(freeformLayout, tag)?.setOnTouchListener(null)
+        }
+        resourceHolder.recycleLayout(FREEFORM_LAYOUT, freeformLayout)
+    }
+
+    private fun extractPackageInfo() {
+        val appInfo = AppInfoCache.get(context, handler, appConfig.packageName, appConfig.userId)
+        appPackageName = appInfo.label
+        appIcon = appInfo.icon
+        appBackgroundColor = appInfo.backgroundColor
     }
 }
@@ -6,30 +6,56 @@ import android.app.PendingIntent;
 import android.content.ComponentName;
 import android.content.Context;
 import android.os.Handler;
+import android.os.SystemProperties;
 import android.util.ArrayMap;
 import android.util.Slog;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 
+/**
+ * All state is confined to the freeform handler thread, see FreeformHandler.
+ */
 public class FreeformWindowManager {
-    private static final HashMap<String, FreeformWindow> freeformWindows = new HashMap<>(1);
+    // insertion order is z-order, windows added later are on top
+    private static final LinkedHashMap<String, FreeformWindow> freeformWindows = new LinkedHashMap<>(1);
     private static final String TAG = "FreeformWindowManager";
+    // minimized windows, oldest first
+    private static final ArrayList<FreeformWindow> minimizedWindows = new ArrayList<>();
+    // number of minimized windows kept running before the oldest one is closed
+    private static final String PROP_MAX_MINIMIZED = "persist.sys.lmofreeform.max_minimized";
+    private static final int DEFAULT_MAX_MINIMIZED = 2;
 
     public static void addWindow(
             Handler handler, Context context,
             String packageName, String activityName, int userId, int taskId,
             PendingIntent pendingIntent, int width, int height, int densityDpi) {
+        // same as FreeformWindow.getFreeformId()
+        String freeformId = packageName + "," + activityName + "," + userId;
+        FreeformWindow oldWindow = freeformWindows.get(freeformId);
+        if (oldWindow != null && taskId == -1 && pendingIntent == null
+                && oldWindow.canReuse(width, height, densityDpi)) {
+            dlog(TAG, "addWindow: reusing " + freeformId);
+            // the window moves to the top of the z-order
+            freeformWindows.remove(freeformId);
+            freeformWindows.put(freeformId, oldWindow);
+            oldWindow.bringToFront();
+            return;
+        }
         AppConfig appConfig = new AppConfig(packageName, activityName, pendingIntent, userId, taskId);
         FreeformConfig freeformConfig = new FreeformConfig(width, height, densityDpi);
         FreeformWindow window = new FreeformWindow(handler, context, appConfig, freeformConfig);
         dlog(TAG, "addWindow: " + packageName + "/" + activityName + ", freeformId=" + window.getFreeformId()
                 + ", existing freeformWindows=" + freeformWindows);
-        FreeformWindow oldWindow = freeformWindows.get(window.getFreeformId());
         if (oldWindow != null) {
+            window.useLaunchSnapshot(oldWindow.takeSnapshotBitmap());
             oldWindow.close();
             oldWindow.destroy("addWindow");
         }
         freeformWindows.put(window.getFreeformId(), window);
+        FreeformRotationWatcher.setWatching(handler, context, true);
+        FreeformVisibilityTracker.requestUpdate(handler);
     }
 
     /**
@@ -37,11 +63,43 @@ public class FreeformWindowManager {
      */
     public static void removeWindow(String freeformId, Boolean close) {
         FreeformWindow removedWindow = freeformWindows.remove(freeformId);
-        if (close && removedWindow != null)
+        if (removedWindow == null) return;
+        minimizedWindows.remove(removedWindow);
+        if (close)
             removedWindow.close();
+        if (freeformWindows.isEmpty()) {
+            FreeformRotationWatcher.setWatching(removedWindow.getHandler(), removedWindow.getContext(), false);
+        }
+        FreeformVisibilityTracker.requestUpdate(removedWindow.getHandler());
     }
 
     public static void removeWindow(String freeformId) {
         removeWindow(freeformId, false /*close*/);
     }
+
+    /**
+     * Close the oldest minimized windows above the limit of PROP_MAX_MINIMIZED
+     * Called in system handler
+     */
+    public static void onWindowMinimized(FreeformWindow window) {
+        minimizedWindows.remove(window);
+        minimizedWindows.add(window);
+        final int maxMinimized = Math.max(0, SystemProperties.getInt(PROP_MAX_MINIMIZED, DEFAULT_MAX_MINIMIZED));
+        while (minimizedWindows.size() > maxMinimized) {
+            FreeformWindow oldest = minimizedWindows.remove(0);
+            dlog(TAG, "too many minimized windows, closing " + oldest.getFreeformId());
+            oldest.close();
+        }
+    }
+
+    public static void onWindowRestored(FreeformWindow window) {
+        minimizedWindows.remove(window);
+    }
+
+    /**
+     * @return all windows, bottom to top
+     */
+    public static List<FreeformWindow> getWindows() {
+        return new ArrayList<>(freeformWindows.values());
+    }
 }
@@ -4,34 +4,58 @@ import android.annotation.SuppressLint
 import android.content.Context
 import android.content.Context.CONTEXT_IGNORE_SECURITY
 import android.content.Context.CONTEXT_INCLUDE_CODE
+import android.util.ArrayMap
 import android.util.Slog
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
+import java.util.WeakHashMap
 
+/**
+ * Resources of a remote package, shared by all freeform windows.
+ * The package context, layout ids and tag lookups are cached, and layouts that are
+ * recycled by a closing window are handed out again instead of inflating a new one.
+ * Called in system handler
+ */
 @SuppressLint("WrongConstant", "DiscouragedApi")
-class RemoteResourceHolder(context: Context, private val resPkg: String) {
+class RemoteResourceHolder private constructor(private val context: Context, private val resPkg: String) {
 
-    private lateinit var remoteContext: Context
+    private var remoteContext: Context? = null
+    private val layoutIds = ArrayMap<String, Int>()
+    private val recycledLayouts = ArrayMap<String, ArrayList<ViewGroup>>()
+    private val childViews = WeakHashMap<ViewGroup, ArrayMap<String, View?>>()
 
     companion object {
         private const val TAG = "LMOFreeform/RemoteResourceHolder"
+        // recycled layouts kept per layout name
+        private const val MAX_RECYCLED_LAYOUTS = 2
+
+        private val holders = ArrayMap<String, RemoteResourceHolder>()
+
+        @JvmStatic
+        fun get(context: Context, resPkg: String): RemoteResourceHolder {
+            return holders.getOrPut(resPkg) { RemoteResourceHolder(context, resPkg) }
+        }
     }
 
-    init {
+    private fun getRemoteContext(): Context? {
+        remoteContext?.let { return it }
         try {
             remoteContext = context.createPackageContext(resPkg, CONTEXT_INCLUDE_CODE or CONTEXT_IGNORE_SECURITY)
         } catch (e: Exception) {
-            e.printStackTrace()
-            Slog.e(TAG, "init", e)
-            runCatching { remoteContext = context.createPackageContext(resPkg, CONTEXT_INCLUDE_CODE or CONTEXT_IGNORE_SECURITY) }
+            Slog.e(TAG, "createPackageContext", e)
         }
+        return remoteContext
     }
 
     fun getLayout(layoutName: String): ViewGroup? {
+        recycledLayouts[layoutName]?.removeLastOrNull()?.let { return it }
         return try {
-            val freeformLayoutId = remoteContext.resources.getIdentifier(layoutName, "layout", resPkg)
-                val r = LayoutInflater.from(remoteContext).inflate(freeformLayoutId, null, false)
+            val remoteContext = getRemoteContext() ?: return null
+            val freeformLayoutId = layoutIds.getOrPut(layoutName) {
+                remoteContext.resources.getIdentifier(layoutName, "layout", resPkg)
+            }
+            val r = LayoutInflater.from(remoteContext).inflate(freeformLayoutId, null, false)
             if (null == r) Slog.e(TAG, "can not find layout $layoutName")
             r as ViewGroup
         } catch (e: Exception) {
@@ -41,10 +65,23 @@ class RemoteResourceHolder(context: Context, private val resPkg: String) {
         }
     }
 
+    /**
+     * Hand a layout from getLayout() back for reuse. It must be detached and reset by the caller.
+     */
+    fun recycleLayout(layoutName: String, layout: ViewGroup) {
+        if (layout.parent != null) return
+        val layouts = recycledLayouts.getOrPut(layoutName) { ArrayList(MAX_RECYCLED_LAYOUTS) }
+        if (layouts.size < MAX_RECYCLED_LAYOUTS && !layouts.contains(layout)) layouts.add(layout)
+    }
+
     fun <T : View> getLayoutChildViewByTag(layout: ViewGroup, tagName: String): T? {
+        val views = childViews.getOrPut(layout) { ArrayMap() }
+        @Suppress("UNCHECKED_CAST")
+        if (views.containsKey(tagName)) return views[tagName] as T?
         return try {
             val r = layout.findViewWithTag<T>(tagName)
             if (null == r) Slog.e(TAG, "can not find tag $tagName in $layout")
+            views[tagName] = r
             r
         } catch (e: Exception) {
             e.printStackTrace()
@@ -1,8 +1,10 @@
 package com.libremobileos.freeform.server.ui
 
 import android.annotation.SuppressLint
+import android.graphics.PointF
 import android.os.Build
 import android.util.Slog
+import android.view.Choreographer
 import android.view.Display
 import android.view.GestureDetector.SimpleOnGestureListener
 import android.view.MotionEvent
@@ -17,23 +19,44 @@ class MoveTouchListener(
 ) : View.OnTouchListener{
     private var startX = 0.0f
     private var startY = 0.0f
+    private var startWindowX = 0
+    private var startWindowY = 0
+    private val predictor by lazy { DragPredictor(window.context, window.freeformConfig.refreshRate) }
+    private val predictedPoint = PointF()
     @SuppressLint("ClickableViewAccessibility")
     override fun onTouch(v: View, event: MotionEvent): Boolean {
         when (event.action) {
             MotionEvent.ACTION_DOWN -> {
                 startX = event.rawX
                 startY = event.rawY
+                startWindowX = window.windowParams.x
+                startWindowY = window.windowParams.y
+                predictor.reset()
+                predictor.predict(event, predictedPoint)
             }
             MotionEvent.ACTION_MOVE -> {
-                window.windowManager.updateViewLayout(window.freeformLayout, window.windowParams.apply {
-                    x = (x + event.rawX - startX).roundToInt()
-                    y = (y + event.rawY - startY).roundToInt()
-                })
-                startX = event.rawX
-                startY = event.rawY
+                predictor.predict(event, predictedPoint)
+                window.moveWindowTo(
+                    (startWindowX + predictedPoint.x - startX).roundToInt(),
+                    (startWindowY + predictedPoint.y - startY).roundToInt()
+                )
+                FreeformVisibilityTracker.requestUpdate(window.handler)
             }
             MotionEvent.ACTION_UP -> {
+                // the final position follows the real finger position
+                window.moveWindowTo(
+                    (startWindowX + event.rawX - startX).roundToInt(),
+                    (startWindowY + event.rawY - startY).roundToInt()
+                )
+                window.commitWindowPosition()
                 window.makeSureFreeformInScreen()
+                FreeformVisibilityTracker.requestUpdate(window.handler)
+            }
+            MotionEvent.ACTION_CANCEL -> {
+                // the pointer was taken away, keep the last applied position
+                window.commitWindowPosition()
+                window.makeSureFreeformInScreen()
+                FreeformVisibilityTracker.requestUpdate(window.handler)
             }
         }
         return true
@@ -47,6 +70,16 @@ class LeftViewClickListener(private val window: FreeformWindow) : View.OnClickLi
 
 }
 
+/**
+ * minimize freeform, the app keeps running
+ */
+class MinimizeLongClickListener(private val window: FreeformWindow) : View.OnLongClickListener {
+    override fun onLongClick(v: View): Boolean {
+        window.handler.post { window.minimize() }
+        return true
+    }
+}
+
 /**
  * maximize freeform screen
  */
@@ -55,13 +88,11 @@ class MaximizeClickListener(private val window: FreeformWindow): View.OnClickLis
         private const val TAG = "LMOFreeform/TouchListener"
     }
     override fun onClick(v: View) {
-        if (null != window.freeformTaskStackListener) {
-            if (window.freeformTaskStackListener!!.taskId == -1) {
-                Slog.e(TAG, "taskId is -1, can`t move")
-                return
-            }
-            runCatching { SystemServiceHolder.activityTaskManager.moveRootTaskToDisplay(window.freeformTaskStackListener!!.taskId, Display.DEFAULT_DISPLAY) }
+        if (window.taskId == -1) {
+            Slog.e(TAG, "taskId is -1, can`t move")
+            return
         }
+        runCatching { SystemServiceHolder.activityTaskManager.moveRootTaskToDisplay(window.taskId, Display.DEFAULT_DISPLAY) }
     }
 }
 
@@ -86,6 +117,14 @@ class RightViewClickListener(private val displayId: Int) : View.OnClickListener
 class ScaleTouchListener(private val window: FreeformWindow, private val isRight: Boolean = true): View.OnTouchListener {
     private var startX = 0.0f
     private var startY = 0.0f
+    private val choreographer = Choreographer.getInstance()
+    private var liveResizePosted = false
+    // at most one intermediate resize per frame, using the latest size of the root view
+    private val liveResizeCallback = Choreographer.FrameCallback {
+        liveResizePosted = false
+        commitSize()
+    }
+
     @SuppressLint("ClickableViewAccessibility")
     override fun onTouch(v: View, event: MotionEvent): Boolean {
         when (event.action) {
@@ -94,39 +133,51 @@ class ScaleTouchListener(private val window: FreeformWindow, private val isRight
                 startY = event.rawY
             }
             MotionEvent.ACTION_MOVE -> {
+                if (!window.ownsLayout()) return true
                 window.freeformRootView.layoutParams = window.freeformRootView.layoutParams.apply {
                     width = max(25, (window.freeformRootView.width + if (isRight) (event.rawX - startX) else (startX - event.rawX)).roundToInt())
                     height = max(25, (window.freeformRootView.height + event.rawY - startY).roundToInt())
                 }
                 startX = event.rawX
                 startY = event.rawY
+                if (window.freeformConfig.liveResize && !liveResizePosted) {
+                    liveResizePosted = true
+                    choreographer.postFrameCallback(liveResizeCallback)
+                }
             }
-            MotionEvent.ACTION_UP -> {
-                if (window.freeformView.surfaceTexture != null) {
-                    window.freeformConfig.width = window.freeformRootView.layoutParams.width
-                    window.freeformConfig.height = window.freeformRootView.layoutParams.height
+            MotionEvent.ACTION_UP, MotionEvent.ACTION_CANCEL -> {
+                if (liveResizePosted) {
+                    choreographer.removeFrameCallback(liveResizeCallback)
+                    liveResizePosted = false
+                }
+                if (window.hasFreeformSurface()) {
+                    commitSize()
                     window.handler.post { window.makeSureFreeformInScreen() }
-                    window.measureScale()
-                    LMOFreeformServiceHolder.resizeFreeform(
-                        window,
-                        window.freeformConfig.freeformWidth,
-                        window.freeformConfig.freeformHeight,
-                        window.freeformConfig.densityDpi
-                    )
-                    window.freeformView.surfaceTexture!!.setDefaultBufferSize(window.freeformConfig.freeformWidth, window.freeformConfig.freeformHeight)
                 }
+                FreeformVisibilityTracker.requestUpdate(window.handler)
             }
         }
         return true
     }
+
+    private fun commitSize() {
+        if (!window.ownsLayout()) return
+        window.freeformConfig.width = window.freeformRootView.layoutParams.width
+        window.freeformConfig.height = window.freeformRootView.layoutParams.height
+        window.resizeFreeformDisplay()
+    }
 }
 
 class HangUpGestureListener(private val window: FreeformWindow) : SimpleOnGestureListener() {
     private var startX = 0
     private var startY = 0
+    private val predictor by lazy { DragPredictor(window.context, window.freeformConfig.refreshRate) }
+    private val predictedPoint = PointF()
     override fun onDown(e: MotionEvent): Boolean {
         startX = window.windowParams.x
         startY = window.windowParams.y
+        predictor.reset()
+        predictor.predict(e, predictedPoint)
         return super.onDown(e)
     }
 
@@ -153,15 +204,14 @@ class HangUpGestureListener(private val window: FreeformWindow) : SimpleOnGestur
             return true
         }
         
-        val newX = (startX + e2.rawX - e1RawX).roundToInt()
-        val newY = (startY + e2.rawY - e1RawY).roundToInt()
+        predictor.predict(e2, predictedPoint)
+        val newX = (startX + predictedPoint.x - e1RawX).roundToInt()
+        val newY = (startY + predictedPoint.y - e1RawY).roundToInt()
 
         try {
             window.handler.post {
-                window.windowManager.updateViewLayout(window.freeformLayout, window.windowParams.apply {
-                    x = newX
-                    y = newY
-                })
+                window.moveWindowTo(newX, newY)
+                FreeformVisibilityTracker.requestUpdate(window.handler)
             }
         } catch (e: Exception) {}
         return true